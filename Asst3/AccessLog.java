@@ -0,0 +1,220 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log that never makes a response wait. Request threads claim a slot
+ * in a fixed ring of preallocated records with a single CAS and fill in the
+ * raw facts (address, port, request line, status, bytes, duration); one
+ * background thread formats whatever has been published and writes it out
+ * as a batch. When the writer falls behind and the ring is full, records
+ * are dropped and counted rather than blocking the request thread.
+ *
+ * Addresses are logged numerically. With resolve enabled, host names come
+ * from a cache that is filled by its own lookup thread, so a slow reverse
+ * DNS lookup only delays when a name first shows up in the log.
+ */
+class AccessLog {
+
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+
+	private final Entry[] ring;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next slot to claim
+	private volatile long head = 0; // next slot to write out, moved by the writer only
+	private final PrintStream out;
+	private final HostNames names;
+	private final LongAdder dropped = new LongAdder();
+
+	// writer state
+	private final StringBuilder batch = new StringBuilder(16 * 1024);
+	private long stampSecond = -1;
+	private String stamp;
+
+	/**
+	 * One access, reused every time the ring wraps around
+	 */
+	private static class Entry {
+		private volatile long sequence = -1; // slot number this entry was last published for
+		private long time;
+		private InetAddress address;
+		private int port;
+		private String requestLine;
+		private int status;
+		private long bytes;
+		private long nanos;
+	}
+
+	/**
+	 * @param capacity-
+	 *            records that may wait for the writer, rounded up to a
+	 *            power of two
+	 * @param path-
+	 *            file to append to, or null for standard error
+	 * @param resolve-
+	 *            whether to log host names instead of addresses
+	 */
+	AccessLog(int capacity, String path, boolean resolve) throws IOException {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.ring = new Entry[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Entry();
+		}
+		this.mask = size - 1;
+		OutputStream stream = path == null ? System.err : new FileOutputStream(path, true);
+		this.out = new PrintStream(stream, false);
+		this.names = resolve ? new HostNames() : null;
+		Thread writer = new Thread(this::drainForever, "access-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+	}
+
+	/**
+	 * Record one response. Never blocks; the record is dropped if the writer
+	 * is too far behind.
+	 *
+	 * @return false if the record was dropped
+	 */
+	boolean log(InetAddress address, int port, String requestLine, int status, long bytes, long nanos) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head >= ring.length) {
+				dropped.increment();
+				return false;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+		Entry entry = ring[(int) sequence & mask];
+		entry.time = System.currentTimeMillis();
+		entry.address = address;
+		entry.port = port;
+		entry.requestLine = requestLine;
+		entry.status = status;
+		entry.bytes = bytes;
+		entry.nanos = nanos;
+		entry.sequence = sequence; // publish
+		return true;
+	}
+
+	long dropped() {
+		return dropped.sum();
+	}
+
+	private void drainForever() {
+		while (true) {
+			if (drain() == 0) {
+				LockSupport.parkNanos(10_000_000L);
+			}
+		}
+	}
+
+	/**
+	 * Write out every record published so far
+	 *
+	 * @return how many were written
+	 */
+	private synchronized int drain() {
+		int count = 0;
+		long next = head;
+		Entry entry;
+		while ((entry = ring[(int) next & mask]).sequence == next) {
+			format(entry);
+			entry.address = null;
+			entry.requestLine = null;
+			head = ++next; // the slot may be claimed again
+			count++;
+			if (batch.length() >= 8 * 1024) {
+				flush();
+			}
+		}
+		if (count > 0) {
+			flush();
+		}
+		return count;
+	}
+
+	private void format(Entry entry) {
+		long second = entry.time / 1000;
+		if (second != stampSecond) {
+			stamp = TIME.format(Instant.ofEpochMilli(entry.time));
+			stampSecond = second;
+		}
+		batch.append('[').append(stamp).append("] ");
+		if (entry.address == null) {
+			batch.append('-');
+		} else {
+			batch.append(names != null ? names.lookup(entry.address) : entry.address.getHostAddress());
+		}
+		batch.append(':').append(entry.port).append(" - ");
+		batch.append(entry.requestLine != null ? entry.requestLine : "-").append(" - ");
+		batch.append(entry.status).append(' ').append(entry.bytes).append(' ');
+		batch.append(entry.nanos / 1000).append("us").append(System.lineSeparator());
+	}
+
+	private void flush() {
+		out.append(batch);
+		out.flush();
+		batch.setLength(0);
+	}
+
+	/**
+	 * Reverse DNS results, looked up in the background. Until a lookup
+	 * completes the numeric address stands in for the name.
+	 */
+	private static class HostNames {
+		private static final int MAX_NAMES = 10000;
+		private static final long TTL = 10 * 60 * 1000L;
+
+		private final ConcurrentHashMap<InetAddress, Name> names = new ConcurrentHashMap<>();
+		private final ExecutorService resolver = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "access-log-dns");
+			t.setDaemon(true);
+			return t;
+		});
+
+		private static class Name {
+			private final String host;
+			private final long expires;
+
+			Name(String host, long expires) {
+				this.host = host;
+				this.expires = expires;
+			}
+		}
+
+		String lookup(InetAddress address) {
+			long now = System.currentTimeMillis();
+			Name name = names.get(address);
+			if (name != null && name.expires > now) {
+				return name.host;
+			}
+			if (names.size() >= MAX_NAMES) {
+				names.clear();
+			}
+			String numeric = address.getHostAddress();
+			// the numeric placeholder also keeps us from asking twice
+			names.put(address, new Name(numeric, Long.MAX_VALUE));
+			try {
+				resolver.execute(() -> names.put(address,
+						new Name(address.getHostName(), System.currentTimeMillis() + TTL)));
+			} catch (RejectedExecutionException e) {
+				names.remove(address);
+			}
+			return name != null ? name.host : numeric;
+		}
+	}
+}
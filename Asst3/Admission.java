@@ -0,0 +1,293 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control between the thread accepting clients and the workers
+ * answering them. Connections wait in a bounded queue instead of being
+ * turned away the moment every worker is busy, so a short burst is absorbed
+ * rather than answered with 503s. Whether to shed is decided by CoDel on
+ * the time a connection spent queued: a good queue drains within an
+ * interval, so only once every connection taken off the queue for a whole
+ * interval (-Dserver.codelInterval, 100ms) waited longer than the target
+ * (-Dserver.codelTarget, 5ms) does it start shedding, and then at a rate
+ * that rises with the square root of the drops until the wait falls back
+ * under the target. Shed clients get a 503 with a Retry-After estimated
+ * from the backlog, written by the worker that dequeued them or, when the
+ * queue itself is full, by a separate shedding thread, never by the
+ * acceptor. In virtual mode connections skip the queue and run on threads
+ * of their own up to a fixed limit, but are counted and turned away here
+ * all the same.
+ */
+class Admission {
+
+	private static final int SHED_BACKLOG = 256; // connections waiting for a 503 before we just close them
+
+	private final ThreadPoolExecutor workers;
+	private final ThreadPoolExecutor shedder;
+	private final CoDelQueue queue;
+	private final int threads;
+	private final long target;
+	private final long interval;
+	// set in virtual mode, where connections run on threads of their own instead of the pool
+	private ExecutorService direct;
+	private Semaphore permits;
+	private int permitLimit;
+	// moving average of the time a worker holds a connection, for Retry-After
+	private volatile long serviceNanos = 0;
+
+	final LongAdder admitted = new LongAdder();
+	final LongAdder shed = new LongAdder(); // dropped by CoDel
+	final LongAdder overflowed = new LongAdder(); // queue full
+	final LongAdder closed = new LongAdder(); // shedding thread full too, closed without an answer
+
+	/**
+	 * @param threads-
+	 *            most workers running at once
+	 * @param capacity-
+	 *            most connections waiting for a worker
+	 * @param targetMillis-
+	 *            queueing delay we are willing to keep
+	 * @param intervalMillis-
+	 *            how long the delay must stay above target before shedding
+	 */
+	Admission(int threads, int capacity, long targetMillis, long intervalMillis) {
+		this.threads = threads;
+		this.target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.queue = new CoDelQueue(capacity);
+		this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+				(task, pool) -> overflow((Entry) task));
+		this.workers.allowCoreThreadTimeOut(true);
+		this.shedder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(SHED_BACKLOG),
+				r -> {
+					Thread t = new Thread(r, "shedder");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * @return admission control configured from the server.* system properties
+	 */
+	static Admission fromProperties() {
+		return new Admission(Integer.getInteger("server.workers", 50), Integer.getInteger("server.queueCapacity", 1024),
+				Long.getLong("server.codelTarget", 5), Long.getLong("server.codelInterval", 100));
+	}
+
+	/**
+	 * Run every connection from now on straight away on the given executor,
+	 * as long as fewer than limit are running, instead of queueing it for
+	 * the pool. Call before the first execute().
+	 */
+	void runDirectly(ExecutorService executor, int limit) {
+		permitLimit = limit;
+		permits = new Semaphore(limit);
+		direct = executor;
+	}
+
+	/**
+	 * Queue a connection for a worker. Never blocks and never writes to the
+	 * client on the calling thread.
+	 */
+	void execute(HTTP1ServerASP.HTTPThread worker) {
+		if (direct == null) {
+			workers.execute(new Entry(worker));
+			return;
+		}
+		if (!permits.tryAcquire()) {
+			reject(worker);
+			return;
+		}
+		Entry entry = new Entry(worker);
+		try {
+			direct.execute(() -> {
+				try {
+					entry.run();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			reject(worker);
+		}
+	}
+
+	/**
+	 * Answer 503 on the shedding thread, e.g. for a client refused before it
+	 * reached the queue
+	 */
+	void reject(HTTP1ServerASP.HTTPThread worker) {
+		overflow(new Entry(worker));
+	}
+
+	/**
+	 * Answer 429 on the shedding thread to a client over its connection
+	 * rate limit
+	 *
+	 * @param retryAfter-
+	 *            seconds until it would be let in
+	 */
+	void limit(HTTP1ServerASP.HTTPThread worker, int retryAfter) {
+		try {
+			shedder.execute(() -> worker.refuse(429, retryAfter));
+		} catch (RejectedExecutionException e) {
+			closed.increment();
+			worker.close();
+		}
+	}
+
+	/**
+	 * @return connections waiting for a worker
+	 */
+	int queued() {
+		return queue.size();
+	}
+
+	/**
+	 * @return workers currently answering a connection
+	 */
+	int active() {
+		if (direct != null) {
+			return permitLimit - permits.availablePermits();
+		}
+		return workers.getActiveCount();
+	}
+
+	private void overflow(Entry entry) {
+		overflowed.increment();
+		try {
+			shedder.execute(entry.shedTask());
+		} catch (RejectedExecutionException e) {
+			closed.increment();
+			entry.worker.close();
+		}
+	}
+
+	/**
+	 * @return seconds for a turned away client to wait: roughly how long the
+	 *         workers need to clear what is queued now
+	 */
+	private int retryAfter() {
+		long backlog = (long) queue.size() * serviceNanos / threads;
+		return (int) Math.max(1, Math.min(60, TimeUnit.NANOSECONDS.toSeconds(backlog) + 1));
+	}
+
+	/**
+	 * A connection waiting for a worker
+	 */
+	private class Entry implements Runnable {
+		private final HTTP1ServerASP.HTTPThread worker;
+		private final long enqueued = System.nanoTime();
+
+		Entry(HTTP1ServerASP.HTTPThread worker) {
+			this.worker = worker;
+		}
+
+		@Override
+		public void run() {
+			admitted.increment();
+			long start = System.nanoTime();
+			try {
+				worker.run();
+			} finally {
+				// races between workers only blur an estimate
+				long took = System.nanoTime() - start;
+				serviceNanos += (took - serviceNanos) / 8;
+			}
+		}
+
+		Runnable shedTask() {
+			int seconds = retryAfter();
+			return () -> worker.shed(seconds);
+		}
+	}
+
+	/**
+	 * The worker queue, applying CoDel as connections are taken off it.
+	 * A connection CoDel drops is handed to the worker as its 503, which
+	 * is quick to write, so the worker is straight back for the next one.
+	 */
+	private class CoDelQueue extends LinkedBlockingQueue<Runnable> {
+		private static final long serialVersionUID = 1L;
+
+		private long firstAboveTime = 0; // when the delay will have been above target for an interval
+		private long dropNext = 0; // when to drop next while dropping
+		private int count = 0; // drops since we started dropping
+		private boolean dropping = false;
+
+		CoDelQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException {
+			return admit(super.take());
+		}
+
+		@Override
+		public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+			Runnable task = super.poll(timeout, unit);
+			return task == null ? null : admit(task);
+		}
+
+		private Runnable admit(Runnable task) {
+			Entry entry = (Entry) task;
+			if (drop(entry, System.nanoTime())) {
+				shed.increment();
+				return entry.shedTask();
+			}
+			return entry;
+		}
+
+		/**
+		 * The CoDel control law, one dequeued connection at a time
+		 *
+		 * @return true if this connection should be shed
+		 */
+		private synchronized boolean drop(Entry entry, long now) {
+			boolean okToDrop = okToDrop(now - entry.enqueued, now);
+			if (dropping) {
+				if (!okToDrop) {
+					dropping = false; // back under target
+					return false;
+				}
+				if (now - dropNext >= 0) {
+					count++;
+					dropNext = controlLaw(dropNext);
+					return true;
+				}
+				return false;
+			}
+			if (okToDrop) {
+				dropping = true;
+				// recently dropping: resume near the rate we left off at
+				count = count > 2 && now - dropNext < interval ? count - 2 : 1;
+				dropNext = controlLaw(now);
+				return true;
+			}
+			return false;
+		}
+
+		private boolean okToDrop(long sojourn, long now) {
+			if (sojourn < target || isEmpty()) {
+				firstAboveTime = 0;
+				return false;
+			}
+			if (firstAboveTime == 0) {
+				firstAboveTime = now + interval;
+				return false;
+			}
+			return now - firstAboveTime >= 0;
+		}
+
+		private long controlLaw(long t) {
+			return t + (long) (interval / Math.sqrt(count));
+		}
+	}
+}
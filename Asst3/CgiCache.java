@@ -0,0 +1,457 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A microcache for the answers to CGI GETs, so a read-heavy script asked
+ * the same question over and over is run once per lifetime instead of once
+ * per request. Only answers the script itself declares cacheable are kept:
+ * a 200 with Cache-Control max-age or s-maxage, or an Expires, and without
+ * no-store, no-cache, private or a Set-Cookie, since whatever is cached here
+ * is shared by every client. -Dserver.cgiCacheMaxAge gives scripts that say
+ * nothing at all a lifetime too, but only for requests without a Cookie or
+ * Authorization header, and such an answer is only ever served to requests
+ * without one either: a script that never mentions caching may well build
+ * its page from the cookie. An answer to a request with Authorization is
+ * kept only if the script says public or s-maxage.
+ *
+ * Entries are keyed by script path and query string, plus the Cookie,
+ * User-Agent and From headers the script listed in Vary; the Vary last seen
+ * for a path and query is remembered so a lookup knows which headers to
+ * add. Vary on anything else, or *, is not cached. Once an entry's lifetime
+ * is over it may still be served for the stale-while-revalidate seconds the
+ * script allowed, while one caller runs the script again in the background.
+ * The total size is bounded by a byte budget with LRU eviction.
+ */
+class CgiCache {
+
+	private static final int VARY_COOKIE = 1;
+	private static final int VARY_USER_AGENT = 2;
+	private static final int VARY_FROM = 4;
+	private static final int VARY_OTHER = 8; // a header the script does not see, or *
+	private static final int ENTRY_OVERHEAD = 128; // rough bytes of bookkeeping per entry
+
+	private final long budget; // bytes of answers we may hold
+	private final long maxEntry; // answers larger than this are never cached
+	private final long defaultMaxAge; // seconds for scripts that declare no lifetime
+	private long used = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	// what the script varied on last time, by path and query; losing one only costs a miss
+	private final LinkedHashMap<String, Integer> varies = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > Math.max(1024, entries.size() * 2);
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stores = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+
+	/**
+	 * What a CGI GET asked for, as far as the cache can tell answers apart
+	 */
+	static class Request {
+		private final String base;
+		private final String cookie;
+		private final String userAgent;
+		private final String from;
+		private final boolean authorization;
+
+		Request(String path, String query, String cookie, String userAgent, String from, boolean authorization) {
+			this.base = query == null ? path : path + '?' + query;
+			this.cookie = cookie;
+			this.userAgent = userAgent;
+			this.from = from;
+			this.authorization = authorization;
+		}
+
+		/**
+		 * @return whether the request says who is asking, so that an answer
+		 *         the script did not declare shareable may be personal
+		 */
+		private boolean credentials() {
+			return cookie != null || authorization;
+		}
+
+		/**
+		 * @return the script path and query string
+		 */
+		String base() {
+			return base;
+		}
+
+		/**
+		 * @return the key of the answer when the script varies on the given
+		 *         headers
+		 */
+		private String key(int vary) {
+			if (vary == 0) {
+				return base;
+			}
+			StringBuilder key = new StringBuilder(base).append('\n').append(vary);
+			append(key, vary, VARY_COOKIE, cookie);
+			append(key, vary, VARY_USER_AGENT, userAgent);
+			append(key, vary, VARY_FROM, from);
+			return key.toString();
+		}
+
+		private static void append(StringBuilder key, int vary, int header, String value) {
+			if ((vary & header) != 0) {
+				key.append('\n');
+				if (value != null) { // absent and empty are different answers
+					key.append('=').append(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A cached answer
+	 */
+	static class Entry {
+		private final String key;
+		private final int status;
+		private final String contentType;
+		private final String headers;
+		private final byte[] body;
+		private final long storedAt;
+		private final long freshUntil;
+		private final long staleUntil;
+		private final long size;
+		private final boolean anonymous; // kept under the default lifetime, not for requests with credentials
+		private boolean refreshing = false; // guarded by the cache
+
+		Entry(String key, int status, String contentType, String headers, byte[] body, long storedAt,
+				long freshUntil, long staleUntil, boolean anonymous) {
+			this.key = key;
+			this.status = status;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+			this.storedAt = storedAt;
+			this.freshUntil = freshUntil;
+			this.staleUntil = staleUntil;
+			this.anonymous = anonymous;
+			this.size = body.length + (headers != null ? headers.length() : 0) + key.length() * 2 + ENTRY_OVERHEAD;
+		}
+
+		int status() {
+			return status;
+		}
+
+		String contentType() {
+			return contentType;
+		}
+
+		byte[] body() {
+			return body;
+		}
+
+		/**
+		 * @return the script's header lines plus an Age saying how long ago
+		 *         the script produced them
+		 */
+		String headers(long now) {
+			String age = "Age: " + Math.max(0, (now - storedAt) / 1000) + "\r\n";
+			return headers != null ? headers + age : age;
+		}
+
+		boolean fresh(long now) {
+			return now < freshUntil;
+		}
+	}
+
+	/**
+	 * @param budget-
+	 *            bytes of answers to hold, 0 turns the cache off
+	 * @param maxEntry-
+	 *            largest answer worth keeping
+	 * @param defaultMaxAge-
+	 *            seconds to keep answers whose script declared no lifetime,
+	 *            0 to leave those uncached
+	 */
+	CgiCache(long budget, long maxEntry, long defaultMaxAge) {
+		this.budget = budget;
+		this.maxEntry = Math.min(maxEntry, budget);
+		this.defaultMaxAge = defaultMaxAge;
+	}
+
+	boolean enabled() {
+		return budget > 0;
+	}
+
+	/**
+	 * @return the largest body that will be cached
+	 */
+	long maxEntry() {
+		return maxEntry;
+	}
+
+	/**
+	 * @param request-
+	 *            the GET or HEAD being answered
+	 * @return an answer that is fresh, or stale but still allowed while it is
+	 *         revalidated, or null if the script has to run
+	 */
+	Entry get(Request request, long now) {
+		synchronized (this) {
+			Integer vary = varies.get(request.base);
+			Entry entry = vary != null ? entries.get(request.key(vary)) : null;
+			if (entry != null && entry.anonymous && request.credentials()) {
+				entry = null; // may not be what the script would say to this client; leave it for the others
+			} else if (entry != null && entry.fresh(now)) {
+				hits.increment();
+				return entry;
+			}
+			if (entry != null && now < entry.staleUntil) {
+				staleHits.increment();
+				return entry;
+			}
+			if (entry != null) { // too old even to serve stale
+				remove(entry);
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * @param entry-
+	 *            a stale answer that was just served
+	 * @return true if the caller should run the script again, false if
+	 *         someone already is
+	 */
+	synchronized boolean claimRefresh(Entry entry) {
+		if (entry.refreshing || entries.get(entry.key) != entry) {
+			return false;
+		}
+		entry.refreshing = true;
+		refreshes.increment();
+		return true;
+	}
+
+	/**
+	 * @param entry-
+	 *            a stale answer whose refresh did not produce a new one
+	 * Drop it rather than keep serving what the script no longer stands by
+	 */
+	synchronized void refreshFailed(Entry entry) {
+		if (entries.get(entry.key) == entry) {
+			remove(entry);
+		}
+	}
+
+	/**
+	 * @param request-
+	 *            the GET the script answered
+	 * @param status-
+	 *            the status it answered with
+	 * @param contentType-
+	 *            its Content-Type, or null
+	 * @param cookies-
+	 *            its Set-Cookie lines, or null
+	 * @param headers-
+	 *            its other header lines, CRLF terminated, or null
+	 * @param body-
+	 *            the complete body
+	 * @return whether the answer was cacheable and is now cached
+	 */
+	boolean put(Request request, int status, String contentType, String cookies, String headers, byte[] body,
+			long now) {
+		if (body.length == 0 || body.length > maxEntry || !cacheable(request, status, cookies, headers, now)) {
+			return false;
+		}
+		Freshness freshness = new Freshness(headers, now);
+		boolean declared = freshness.lifetime >= 0;
+		long lifetime = declared ? freshness.lifetime : defaultMaxAge * 1000;
+		String key = request.key(freshness.vary);
+		Entry entry = new Entry(key, status, contentType, headers, body, now, now + lifetime,
+				now + lifetime + freshness.staleWhileRevalidate, !declared);
+		if (entry.size > budget) {
+			return false;
+		}
+		synchronized (this) {
+			varies.put(request.base, freshness.vary);
+			Entry old = entries.put(key, entry);
+			if (old != null) {
+				used -= old.size;
+			}
+			used += entry.size;
+			evict();
+		}
+		stores.increment();
+		return true;
+	}
+
+	/**
+	 * @return whether an answer with this status and these headers may be
+	 *         kept, whatever its body turns out to be
+	 */
+	boolean cacheable(Request request, int status, String cookies, String headers, long now) {
+		if (!enabled() || status != 200 || cookies != null) {
+			return false;
+		}
+		Freshness freshness = new Freshness(headers, now);
+		boolean declared = freshness.lifetime >= 0;
+		long lifetime = declared ? freshness.lifetime : defaultMaxAge * 1000;
+		return !freshness.uncacheable && lifetime > 0 && (freshness.vary & VARY_OTHER) == 0
+				&& (declared || !request.credentials()) && (!request.authorization || freshness.shared);
+	}
+
+	/**
+	 * @return a key that is the same for two requests only if they would
+	 *         get the same cached answer: the headers the script last varied
+	 *         on, or all of them while that is not known yet
+	 */
+	synchronized String flightKey(Request request) {
+		Integer vary = varies.get(request.base);
+		String key = request.key(vary != null ? vary : VARY_COOKIE | VARY_USER_AGENT | VARY_FROM);
+		return request.authorization ? key + "\nAuthorization" : key;
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.key);
+		used -= entry.size;
+	}
+
+	/**
+	 * Drop least recently used entries until we are within budget
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+		while (used > budget && lru.hasNext()) {
+			Entry victim = lru.next().getValue();
+			lru.remove();
+			used -= victim.size;
+			evictions.increment();
+		}
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long staleHits() {
+		return staleHits.sum();
+	}
+
+	long misses() {
+		return misses.sum();
+	}
+
+	long stores() {
+		return stores.sum();
+	}
+
+	long evictions() {
+		return evictions.sum();
+	}
+
+	long refreshes() {
+		return refreshes.sum();
+	}
+
+	synchronized long usedBytes() {
+		return used;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * How long a script said its answer may be reused, from the
+	 * Cache-Control, Expires and Vary lines among its headers
+	 */
+	private static class Freshness {
+		private boolean uncacheable = false;
+		private long lifetime = -1; // milliseconds, -1 if the script did not say
+		private long staleWhileRevalidate = 0; // milliseconds
+		private int vary = 0;
+		private boolean shared = false; // public or s-maxage, so even answers to Authorization may be kept
+
+		Freshness(String headers, long now) {
+			if (headers == null) {
+				return;
+			}
+			long maxAge = -1;
+			long sharedMaxAge = -1;
+			long expires = -1;
+			boolean sawExpires = false;
+			for (String line : headers.split("\r\n")) {
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Cache-Control")) {
+					for (String directive : value.split(",")) {
+						String d = directive.trim().toLowerCase(Locale.ROOT);
+						if (d.equals("no-store") || d.equals("no-cache") || d.equals("private")
+								|| d.startsWith("no-cache=") || d.startsWith("private=")) {
+							uncacheable = true;
+						} else if (d.startsWith("max-age=")) {
+							maxAge = seconds(d.substring(8));
+						} else if (d.startsWith("s-maxage=")) {
+							sharedMaxAge = seconds(d.substring(9));
+							shared = true;
+						} else if (d.equals("public")) {
+							shared = true;
+						} else if (d.startsWith("stale-while-revalidate=")) {
+							staleWhileRevalidate = Math.max(0, seconds(d.substring(23))) * 1000;
+						}
+					}
+				} else if (name.equalsIgnoreCase("Expires")) {
+					byte[] date = value.getBytes(StandardCharsets.ISO_8859_1);
+					expires = HttpDates.parse(date, 0, date.length); // an invalid date means already expired
+					sawExpires = true;
+				} else if (name.equalsIgnoreCase("Vary")) {
+					for (String header : value.split(",")) {
+						vary |= varyBit(header.trim());
+					}
+				}
+			}
+			if (sharedMaxAge >= 0) { // we are a shared cache, so s-maxage wins
+				lifetime = sharedMaxAge * 1000;
+			} else if (maxAge >= 0) {
+				lifetime = maxAge * 1000;
+			} else if (sawExpires) {
+				lifetime = Math.max(0, expires - now);
+			}
+		}
+
+		private static int varyBit(String header) {
+			if (header.isEmpty()) {
+				return 0;
+			} else if (header.equalsIgnoreCase("Cookie")) {
+				return VARY_COOKIE;
+			} else if (header.equalsIgnoreCase("User-Agent")) {
+				return VARY_USER_AGENT;
+			} else if (header.equalsIgnoreCase("From")) {
+				return VARY_FROM;
+			}
+			return VARY_OTHER;
+		}
+
+		/**
+		 * @return a delta-seconds value, or 0 if it is not one
+		 */
+		private static long seconds(String value) {
+			try {
+				return Math.max(0, Long.parseLong(value.replace("\"", "")));
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+	}
+}
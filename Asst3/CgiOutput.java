@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The standard output of a running CGI script, split into the headers the
+ * script asked for and a body that is read as raw bytes, so binary output
+ * survives and nothing has to be held in memory beyond one buffer.
+ *
+ * Two kinds of script are understood. A proper CGI script starts with a
+ * header block ended by an empty line; Status, Content-Type and Location are
+ * interpreted and any other header is passed on to the client. Our older
+ * scripts print no header block, only HTML with Set-Cookie lines in front
+ * of it or anywhere in it. As before, their output is read whole and every
+ * line containing "Set-Cookie:" is taken out of the body and sent as a
+ * Set-Cookie header; only output beyond LEGACY_MAX is streamed as it is.
+ */
+class CgiOutput extends InputStream {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final long SETTLE_MILLIS = 20; // how long we wait to see if a script that went quiet is done
+	private static final int LEGACY_MAX = 8 * 1024 * 1024; // most output of an old style script searched for cookies
+	private static final byte[] SET_COOKIE = "Set-Cookie:".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final Process process;
+	private final InputStream stdout;
+	private byte[] buf = new byte[BUFFER_SIZE]; // grows only in bufferAll()
+	private int pos = 0; // next body byte in buf
+	private int end = 0; // end of the bytes in buf
+	private boolean eof = false;
+
+	private int status = 0; // 0 when the script did not ask for one
+	private String contentType = null;
+	private String location = null;
+	private final StringBuilder cookies = new StringBuilder();
+	private final StringBuilder headers = new StringBuilder(); // anything else to pass on, CRLF terminated
+
+	CgiOutput(Process process) {
+		this.process = process;
+		this.stdout = process.getInputStream();
+	}
+
+	/**
+	 * Read until the headers are known, leaving whatever body arrived with
+	 * them in the buffer. Blocks until the script prints its first line.
+	 */
+	void parseHeaders() throws IOException {
+		int lineStart = 0;
+		int cookieEnd = 0; // body start for an old style script with leading Set-Cookie lines
+		boolean cookiesOnly = true;
+		while (true) {
+			int newline = indexOf('\n', lineStart, end);
+			if (newline < 0) {
+				if (eof || end == buf.length) {
+					break; // last line, or too long for a header: it is body
+				}
+				fill();
+				continue;
+			}
+			int lineEnd = newline > lineStart && buf[newline - 1] == '\r' ? newline - 1 : newline;
+			if (lineEnd == lineStart) {
+				if (lineStart == 0) {
+					break; // leading empty line, no headers at all
+				}
+				interpret(0, lineStart);
+				pos = newline + 1;
+				return;
+			}
+			int colon = headerColon(lineStart, lineEnd);
+			if (colon < 0) {
+				break; // first line of an old style body
+			}
+			if (cookiesOnly && isSetCookie(lineStart, colon)) {
+				cookieEnd = newline + 1;
+			} else {
+				cookiesOnly = false;
+			}
+			lineStart = newline + 1;
+		}
+		// no header block: an old style script, whose Set-Cookie lines may come anywhere
+		interpret(0, cookieEnd);
+		pos = cookieEnd;
+		bufferAll(LEGACY_MAX);
+		takeCookieLines();
+	}
+
+	/**
+	 * Move every buffered body line containing "Set-Cookie:" into the
+	 * Set-Cookie headers, leaving the rest of the body as it was. A last
+	 * line still being written is left alone.
+	 */
+	private void takeCookieLines() {
+		int kept = pos; // end of the body kept so far
+		int lineStart = pos;
+		while (lineStart < end) {
+			int newline = indexOf('\n', lineStart, end);
+			if (newline < 0 && !eof) {
+				break;
+			}
+			int next = newline < 0 ? end : newline + 1;
+			int lineEnd = newline < 0 ? end : newline;
+			if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			int cookie = find(SET_COOKIE, lineStart, lineEnd);
+			if (cookie >= 0) {
+				String value = string(cookie + SET_COOKIE.length, lineEnd).trim();
+				cookies.append("Set-Cookie: ").append(value).append("\r\n");
+			} else {
+				System.arraycopy(buf, lineStart, buf, kept, next - lineStart);
+				kept += next - lineStart;
+			}
+			lineStart = next;
+		}
+		System.arraycopy(buf, lineStart, buf, kept, end - lineStart);
+		end = kept + end - lineStart;
+	}
+
+	/**
+	 * Read whatever the script has ready, and everything if it has finished
+	 *
+	 * @return true if the whole body is now in the buffer
+	 */
+	boolean bufferRest() throws IOException {
+		while (!eof) {
+			if (end == buf.length && !compact()) {
+				return false;
+			}
+			if (stdout.available() > 0 || settled()) {
+				fill();
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read until the script finishes, growing the buffer as needed
+	 *
+	 * @param max-
+	 *            most body bytes to hold
+	 * @return true if the whole body is now in the buffer, false if it is
+	 *         longer than max; what was read is still there to be read
+	 */
+	boolean bufferAll(int max) throws IOException {
+		while (!eof) {
+			if (end == buf.length && !compact()) {
+				if (end > max) {
+					return false;
+				}
+				buf = Arrays.copyOf(buf, (int) Math.min((long) max + 1, buf.length * 2L));
+			}
+			fill();
+		}
+		return end - pos <= max;
+	}
+
+	/**
+	 * @return whether the script exited, after giving it a moment
+	 */
+	private boolean settled() {
+		try {
+			return process.waitFor(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the status the script asked for, 302 if it only gave a
+	 *         Location, or 0
+	 */
+	int status() {
+		if (status == 0 && location != null) {
+			return 302;
+		}
+		return status;
+	}
+
+	String contentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the Set-Cookie header lines, or null
+	 */
+	String cookies() {
+		return cookies.length() > 0 ? cookies.toString() : null;
+	}
+
+	/**
+	 * @return every other header line to pass on, or null
+	 */
+	String headers() {
+		if (location != null) {
+			return headers + "Location: " + location + "\r\n";
+		}
+		return headers.length() > 0 ? headers.toString() : null;
+	}
+
+	/**
+	 * @return the body bytes currently in the buffer
+	 */
+	byte[] buffered() {
+		byte[] body = new byte[end - pos];
+		System.arraycopy(buf, pos, body, 0, body.length);
+		return body;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (pos < end) {
+			int count = Math.min(len, end - pos);
+			System.arraycopy(buf, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+		if (eof) {
+			return -1;
+		}
+		int count = stdout.read(b, off, len);
+		if (count == -1) {
+			eof = true;
+		}
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return end - pos + (eof ? 0 : stdout.available());
+	}
+
+	/**
+	 * Close the script's output and stop the script if it is still going,
+	 * e.g. because the client went away
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			stdout.close();
+		} finally {
+			if (process.isAlive()) {
+				process.destroy();
+			}
+		}
+	}
+
+	private void fill() throws IOException {
+		int count = stdout.read(buf, end, buf.length - end);
+		if (count == -1) {
+			eof = true;
+		} else {
+			end += count;
+		}
+	}
+
+	/**
+	 * Move the unread body to the front of the buffer
+	 *
+	 * @return whether that made room
+	 */
+	private boolean compact() {
+		if (pos == 0) {
+			return false;
+		}
+		System.arraycopy(buf, pos, buf, 0, end - pos);
+		end -= pos;
+		pos = 0;
+		return true;
+	}
+
+	/**
+	 * Take in the header lines between from and to
+	 */
+	private void interpret(int from, int to) {
+		int lineStart = from;
+		while (lineStart < to) {
+			int newline = indexOf('\n', lineStart, to);
+			int lineEnd = buf[newline - 1] == '\r' ? newline - 1 : newline;
+			int colon = headerColon(lineStart, lineEnd);
+			String name = string(lineStart, colon);
+			String value = string(colon + 1, lineEnd).trim();
+			if (name.equalsIgnoreCase("Status")) {
+				status = statusCode(value);
+			} else if (name.equalsIgnoreCase("Content-Type")) {
+				contentType = value;
+			} else if (name.equalsIgnoreCase("Location")) {
+				location = value;
+			} else if (name.equalsIgnoreCase("Set-Cookie")) {
+				cookies.append("Set-Cookie: ").append(value).append("\r\n");
+			} else if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Transfer-Encoding")
+					&& !name.equalsIgnoreCase("Connection")) { // how the body is framed is ours to decide
+				headers.append(name).append(": ").append(value).append("\r\n");
+			}
+			lineStart = newline + 1;
+		}
+	}
+
+	/**
+	 * @return a three digit status from a "Status: 404 Not Found" value, or 0
+	 */
+	private static int statusCode(String value) {
+		if (value.length() < 3) {
+			return 0;
+		}
+		int code = 0;
+		for (int i = 0; i < 3; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			code = code * 10 + (c - '0');
+		}
+		return code >= 100 && code < 600 ? code : 0;
+	}
+
+	/**
+	 * @return index of the colon if the line is "Token: value", else -1
+	 */
+	private int headerColon(int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (b == ':') {
+				return i > start ? i : -1;
+			}
+			if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '-' || b == '_')) {
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isSetCookie(int start, int colon) {
+		return string(start, colon).equalsIgnoreCase("Set-Cookie");
+	}
+
+	/**
+	 * @return where the exact bytes first occur in [from, to), or -1
+	 */
+	private int find(byte[] needle, int from, int to) {
+		outer: for (int i = from; i + needle.length <= to; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (buf[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private int indexOf(int b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private String string(int start, int end) {
+		return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+}
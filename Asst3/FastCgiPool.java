@@ -0,0 +1,797 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client side of FastCGI for one long-lived responder. Requests go over a
+ * small pool of persistent connections (a Unix domain socket or loopback
+ * TCP). If the responder says it can multiplex (FCGI_MPXS_CONNS), several
+ * requests share a connection, told apart by request id; otherwise a
+ * connection carries one request at a time.
+ *
+ * A request is presented as a Process, so the server drives it exactly like
+ * a forked CGI script: write the body to getOutputStream(), read the
+ * script's output from getInputStream(). FCGI_STDERR goes to the log. A
+ * request the responder refuses, or whose connection breaks, makes that
+ * stream throw rather than end, so it is never taken for empty output.
+ */
+class FastCgiPool {
+
+	private static final Logger LOGGER = Logger.getLogger(FastCgiPool.class.getName());
+
+	private static final int VERSION = 1;
+	private static final int BEGIN_REQUEST = 1;
+	private static final int ABORT_REQUEST = 2;
+	private static final int END_REQUEST = 3;
+	private static final int PARAMS = 4;
+	private static final int STDIN = 5;
+	private static final int STDOUT = 6;
+	private static final int STDERR = 7;
+	private static final int GET_VALUES = 9;
+	private static final int GET_VALUES_RESULT = 10;
+	private static final int RESPONDER = 1;
+	private static final int KEEP_CONN = 1;
+	private static final int REQUEST_COMPLETE = 0; // protocol statuses in FCGI_END_REQUEST
+	private static final int CANT_MPX_CONN = 1;
+	private static final int OVERLOADED = 2;
+	private static final int UNKNOWN_ROLE = 3;
+	private static final int MAX_CONTENT = 65535;
+	private static final int MAX_MULTIPLEX = 16; // requests we put on one connection at most
+	private static final byte[] END_OF_OUTPUT = new byte[0];
+	private static final byte[] SPILLED = new byte[0]; // more output is in the spill file
+	private static final int OUTPUT_BUFFER = 256 * 1024; // bytes of a request's output held for a slow client
+	// bytes of a request's output kept on disk for a slow client on a multiplexed connection
+	private static final long SPILL_LIMIT = Long.getLong("server.fastcgiSpillBytes", 64L * 1024 * 1024);
+
+	private final SocketAddress address;
+	private final Connection[] connections;
+	private final long timeout; // ms we wait for the responder before giving up on a request
+
+	/**
+	 * @param address-
+	 *            "unix:/path/to/socket" or "host:port"
+	 * @param size-
+	 *            connections to keep open
+	 * @param timeout-
+	 *            milliseconds the responder may stay silent during a request
+	 */
+	FastCgiPool(String address, int size, long timeout) {
+		this.address = parseAddress(address);
+		this.connections = new Connection[Math.max(1, size)];
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param address-
+	 *            "unix:/path/to/socket" or "host:port"
+	 * @return the address to connect to
+	 * @throws IllegalArgumentException
+	 *             if it is neither
+	 */
+	static SocketAddress parseAddress(String address) {
+		if (address.startsWith("unix:")) {
+			if (address.length() == "unix:".length()) {
+				throw new IllegalArgumentException("no socket path: " + address);
+			}
+			return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+		}
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("not unix:path or host:port: " + address);
+		}
+		int port = Integer.parseInt(address.substring(colon + 1)); // a NumberFormatException is one too
+		return new InetSocketAddress(address.substring(0, colon), port); // checks the port's range
+	}
+
+	/**
+	 * @param mappings-
+	 *            comma separated "path-prefix=address" pairs, e.g.
+	 *            "/cgi-bin/store.cgi=unix:/tmp/store.sock,/cgi-bin/=127.0.0.1:9000"
+	 * @return a pool per mapping, keyed by path prefix, in the given order
+	 */
+	static Map<String, FastCgiPool> parseMappings(String mappings, int size, long timeout) {
+		Map<String, FastCgiPool> pools = new LinkedHashMap<>();
+		if (mappings == null || mappings.trim().isEmpty()) {
+			return pools;
+		}
+		for (String mapping : mappings.split(",")) {
+			int eq = mapping.indexOf('=');
+			if (eq <= 0) {
+				LOGGER.log(Level.SEVERE, "Bad FastCGI mapping: " + mapping);
+				continue;
+			}
+			String prefix = mapping.substring(0, eq).trim();
+			try {
+				pools.put(prefix, new FastCgiPool(mapping.substring(eq + 1).trim(), size, timeout));
+			} catch (IllegalArgumentException e) {
+				LOGGER.log(Level.SEVERE, "Bad FastCGI mapping: " + mapping + ": " + e.getMessage());
+			}
+		}
+		return pools;
+	}
+
+	/**
+	 * Begin a request and send its parameters
+	 *
+	 * @param params-
+	 *            the CGI environment of the request
+	 * @return the running request
+	 */
+	Process start(Map<String, String> params) throws IOException {
+		Exchange exchange = new Exchange();
+		Connection connection = acquire(exchange);
+		try {
+			connection.begin(exchange, params);
+		} catch (IOException e) {
+			connection.fail(e);
+			throw e;
+		}
+		return exchange;
+	}
+
+	/**
+	 * Find a connection with room for another request, opening one if
+	 * needed. The connect happens outside the pool's lock, so a responder
+	 * that is slow to accept holds up only the request that opens it.
+	 */
+	private Connection acquire(Exchange exchange) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		Connection opening;
+		synchronized (this) {
+			while (true) {
+				Connection best = null;
+				for (int i = 0; i < connections.length; i++) {
+					Connection c = connections[i];
+					if (c == null || c.closed) {
+						c = new Connection(i);
+						connections[i] = c;
+					}
+					if (c.active.size() < c.capacity && (best == null || c.active.size() < best.active.size())) {
+						best = c;
+					}
+				}
+				if (best != null) {
+					best.register(exchange);
+					if (best.opened) {
+						return best;
+					}
+					// nobody else gets this one until it is open and has told us it multiplexes
+					best.opened = true;
+					opening = best;
+					break;
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new SocketTimeoutException("No FastCGI connection free for " + address);
+				}
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+		try {
+			opening.open();
+		} catch (IOException e) {
+			opening.fail(e);
+			throw e;
+		}
+		return opening;
+	}
+
+	private synchronized void released() {
+		notifyAll();
+	}
+
+	/**
+	 * One socket to the responder, with a thread reading its records
+	 */
+	private class Connection implements Runnable {
+		private final int index;
+		private volatile SocketChannel channel;
+		private volatile boolean closed = false;
+		private boolean opened = false; // claimed by a request that opens it; guarded by the pool
+		private volatile int capacity = 1; // until the responder tells us it multiplexes; written with the pool locked
+		private final Map<Integer, Exchange> active = new ConcurrentHashMap<>();
+		private int nextId = 1;
+
+		Connection(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Connect and ask whether we may multiplex. Called by the one request
+		 * that claimed the connection, without the pool locked.
+		 */
+		void open() throws IOException {
+			channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX)
+					: SocketChannel.open();
+			channel.connect(address);
+			ByteArrayOutputStream values = new ByteArrayOutputStream();
+			pair(values, "FCGI_MPXS_CONNS", "");
+			pair(values, "FCGI_MAX_REQS", "");
+			write(0, GET_VALUES, values.toByteArray(), 0, values.size());
+			Thread reader = new Thread(this, "fastcgi-" + index);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Give the exchange a request id on this connection. Called with
+		 * the pool locked.
+		 */
+		void register(Exchange exchange) {
+			while (active.containsKey(nextId)) {
+				nextId = nextId % 0xffff + 1;
+			}
+			exchange.id = nextId;
+			exchange.connection = this;
+			active.put(nextId, exchange);
+			nextId = nextId % 0xffff + 1;
+		}
+
+		void begin(Exchange exchange, Map<String, String> params) throws IOException {
+			byte[] begin = { 0, RESPONDER, KEEP_CONN, 0, 0, 0, 0, 0 };
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				pair(encoded, param.getKey(), param.getValue());
+			}
+			byte[] body = encoded.toByteArray();
+			synchronized (this) {
+				write(exchange.id, BEGIN_REQUEST, begin, 0, begin.length);
+				for (int off = 0; off < body.length; off += MAX_CONTENT) {
+					write(exchange.id, PARAMS, body, off, Math.min(MAX_CONTENT, body.length - off));
+				}
+				write(exchange.id, PARAMS, body, 0, 0);
+			}
+		}
+
+		/**
+		 * Send one record, splitting nothing; content must fit one record
+		 */
+		synchronized void write(int id, int type, byte[] content, int off, int len) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			header.put((byte) VERSION).put((byte) type).putShort((short) id).putShort((short) len).put((byte) 0)
+					.put((byte) 0);
+			header.flip();
+			ByteBuffer[] record = { header, ByteBuffer.wrap(content, off, len) };
+			while (record[1].hasRemaining() || header.hasRemaining()) {
+				channel.write(record);
+			}
+		}
+
+		/**
+		 * Read records and hand them to their requests until the responder
+		 * closes the connection
+		 */
+		@Override
+		public void run() {
+			ByteBuffer header = ByteBuffer.allocate(8);
+			try {
+				while (true) {
+					header.clear();
+					readFully(header);
+					header.flip();
+					header.get(); // version
+					int type = header.get() & 0xff;
+					int id = header.getShort() & 0xffff;
+					int length = header.getShort() & 0xffff;
+					int padding = header.get() & 0xff;
+					ByteBuffer content = ByteBuffer.allocate(length + padding);
+					readFully(content);
+					byte[] data = new byte[length];
+					content.flip();
+					content.get(data);
+					record(type, id, data);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void record(int type, int id, byte[] data) {
+			if (type == GET_VALUES_RESULT) {
+				values(data);
+				return;
+			}
+			Exchange exchange = active.get(id);
+			if (exchange == null) {
+				return; // aborted, or not ours
+			}
+			switch (type) {
+			case STDOUT:
+				if (data.length > 0 && !exchange.aborted) {
+					exchange.buffer(data);
+				}
+				break;
+			case STDERR:
+				if (data.length > 0) {
+					LOGGER.log(Level.SEVERE, "FastCGI " + address + ": " + new String(data, StandardCharsets.UTF_8).trim());
+				}
+				break;
+			case END_REQUEST:
+				ByteBuffer body = ByteBuffer.wrap(data);
+				exchange.exitValue = data.length >= 4 ? body.getInt() : 0;
+				int protocolStatus = data.length >= 5 ? body.get() & 0xff : REQUEST_COMPLETE;
+				end(exchange, protocolStatus == REQUEST_COMPLETE ? null : refused(protocolStatus));
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Take in the responder's answer to FCGI_GET_VALUES
+		 */
+		private void values(byte[] data) {
+			boolean multiplexes = false;
+			int maxRequests = MAX_MULTIPLEX;
+			int pos = 0;
+			while (pos < data.length) {
+				int[] lengths = new int[2];
+				for (int i = 0; i < 2; i++) {
+					if ((data[pos] & 0x80) == 0) {
+						lengths[i] = data[pos++];
+					} else {
+						lengths[i] = ByteBuffer.wrap(data, pos, 4).getInt() & 0x7fffffff;
+						pos += 4;
+					}
+				}
+				String name = new String(data, pos, lengths[0], StandardCharsets.ISO_8859_1);
+				String value = new String(data, pos + lengths[0], lengths[1], StandardCharsets.ISO_8859_1);
+				pos += lengths[0] + lengths[1];
+				try {
+					if (name.equals("FCGI_MPXS_CONNS")) {
+						multiplexes = Integer.parseInt(value.trim()) == 1;
+					} else if (name.equals("FCGI_MAX_REQS")) {
+						maxRequests = Math.min(maxRequests, Integer.parseInt(value.trim()));
+					}
+				} catch (NumberFormatException e) {
+					// keep the default
+				}
+			}
+			synchronized (FastCgiPool.this) {
+				capacity = multiplexes ? Math.max(1, maxRequests) : 1;
+				FastCgiPool.this.notifyAll();
+			}
+		}
+
+		/**
+		 * @return why the responder did not complete a request, having
+		 *         stopped multiplexing on this connection if that was it
+		 */
+		private IOException refused(int protocolStatus) {
+			switch (protocolStatus) {
+			case CANT_MPX_CONN:
+				synchronized (FastCgiPool.this) {
+					capacity = 1;
+				}
+				return new IOException("FastCGI responder " + address + " cannot multiplex this connection");
+			case OVERLOADED:
+				return new IOException("FastCGI responder " + address + " is overloaded");
+			case UNKNOWN_ROLE:
+				return new IOException("FastCGI responder " + address + " does not take the responder role");
+			default:
+				return new IOException("FastCGI responder " + address + " ended a request with status "
+						+ protocolStatus);
+			}
+		}
+
+		/**
+		 * @param failure-
+		 *            why the request did not complete, or null if it did
+		 */
+		void end(Exchange exchange, IOException failure) {
+			if (active.remove(exchange.id, exchange)) {
+				exchange.failure = failure; // before the end is queued, so the reader sees it
+				exchange.stdout.add(END_OF_OUTPUT);
+				exchange.ended.countDown();
+				released();
+			}
+		}
+
+		/**
+		 * The connection broke: every request on it fails
+		 */
+		void fail(IOException e) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException ignored) {
+				// closing anyway
+			}
+			if (!active.isEmpty()) {
+				LOGGER.log(Level.SEVERE, "FastCGI connection to " + address + " lost: " + e);
+			}
+			for (Exchange exchange : active.values()) {
+				exchange.exitValue = -1;
+				end(exchange, new IOException("FastCGI connection to " + address + " lost", e));
+			}
+			released();
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("FastCGI responder closed the connection");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Append one FastCGI name-value pair
+	 */
+	private static void pair(ByteArrayOutputStream out, String name, String value) {
+		byte[] n = name.getBytes(StandardCharsets.UTF_8);
+		byte[] v = value.getBytes(StandardCharsets.UTF_8);
+		length(out, n.length);
+		length(out, v.length);
+		out.write(n, 0, n.length);
+		out.write(v, 0, v.length);
+	}
+
+	private static void length(ByteArrayOutputStream out, int length) {
+		if (length < 128) {
+			out.write(length);
+		} else {
+			out.write((length >>> 24) | 0x80);
+			out.write(length >>> 16);
+			out.write(length >>> 8);
+			out.write(length);
+		}
+	}
+
+	/**
+	 * One request in flight, looking like a process to the caller. At most
+	 * OUTPUT_BUFFER bytes of its output are queued in memory. Beyond that, on
+	 * a connection carrying only this request, the connection's reader waits
+	 * for the client to catch up, which pushes back on the responder through
+	 * the socket, and a client that does not catch up within the timeout has
+	 * its request aborted. On a multiplexed connection the reader must never
+	 * wait for one client while the others' output queues up behind it, so
+	 * the rest of the output goes to a temporary file instead, and only a
+	 * request whose file grows past -Dserver.fastcgiSpillBytes (64MB) is
+	 * aborted.
+	 */
+	private class Exchange extends Process {
+		private int id;
+		private Connection connection;
+		private final BlockingQueue<byte[]> stdout = new LinkedBlockingQueue<>();
+		private final Semaphore room = new Semaphore(OUTPUT_BUFFER); // bytes that may still be queued
+		private final CountDownLatch ended = new CountDownLatch(1);
+		private volatile int exitValue;
+		private volatile boolean aborted = false; // output is no longer wanted
+		private volatile IOException failure; // why the output ends early, thrown once it is reached
+		private volatile FileChannel spill; // output past the queue once spilling started, deleted on close
+		private volatile long spilled = 0; // bytes written to the spill file
+
+		private final OutputStream stdin = new OutputStream() {
+			private final byte[] buf = new byte[8 * 1024];
+			private int count = 0;
+			private boolean closed = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				if (count == buf.length) {
+					flush();
+				}
+				buf[count++] = (byte) b;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					if (count == buf.length) {
+						flush();
+					}
+					int n = Math.min(len, buf.length - count);
+					System.arraycopy(b, off, buf, count, n);
+					count += n;
+					off += n;
+					len -= n;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				if (count > 0) {
+					connection.write(id, STDIN, buf, 0, count);
+					count = 0;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					flush();
+					connection.write(id, STDIN, buf, 0, 0); // end of the body
+				}
+			}
+		};
+
+		private final InputStream output = new InputStream() {
+			private byte[] chunk = new byte[0];
+			private int pos = 0;
+			private boolean spilling = false; // everything after the queued chunks is in the spill file
+			private long spillRead = 0; // bytes taken from the spill file
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				while (pos == chunk.length) {
+					if (spilling && spillRead < spilled) {
+						chunk = unspill();
+						pos = 0;
+						continue;
+					}
+					if (chunk == END_OF_OUTPUT) {
+						return end();
+					}
+					try {
+						byte[] next = stdout.poll(timeout, TimeUnit.MILLISECONDS);
+						if (next == null) {
+							destroy();
+							throw new SocketTimeoutException("FastCGI responder " + address + " timed out");
+						}
+						room.release(next.length);
+						if (next == SPILLED) {
+							spilling = true; // its data is read at the top of the loop
+							chunk = new byte[0];
+						} else {
+							chunk = next;
+						}
+						pos = 0;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+				}
+				int n = Math.min(len, chunk.length - pos);
+				System.arraycopy(chunk, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+
+			/**
+			 * @return the next piece of the spill file
+			 */
+			private byte[] unspill() throws IOException {
+				FileChannel file = spill;
+				if (file == null) {
+					throw new IOException("FastCGI output from " + address + " was aborted");
+				}
+				byte[] data = new byte[(int) Math.min(MAX_CONTENT, spilled - spillRead)];
+				ByteBuffer target = ByteBuffer.wrap(data);
+				while (target.hasRemaining()) {
+					if (file.read(target, spillRead + target.position()) < 0) {
+						throw new EOFException("FastCGI spill file shrank");
+					}
+				}
+				spillRead += data.length;
+				return data;
+			}
+
+			/**
+			 * @return -1 for output that is complete
+			 * @throws IOException
+			 *             if it was cut short
+			 */
+			private int end() throws IOException {
+				closeSpill();
+				IOException cause = failure;
+				if (cause != null) {
+					throw new IOException(cause.getMessage(), cause);
+				}
+				return -1;
+			}
+
+			@Override
+			public int available() {
+				int n = chunk.length - pos;
+				for (byte[] queued : stdout) {
+					n += queued.length;
+				}
+				return n + (int) Math.min(Integer.MAX_VALUE - n, spilled - spillRead);
+			}
+
+			@Override
+			public void close() {
+				closeSpill();
+			}
+		};
+
+		/**
+		 * Queue a record of output, waiting for room only if no other
+		 * request shares the connection. Runs on the connection's reader
+		 * thread.
+		 */
+		void buffer(byte[] data) {
+			if (spill != null) {
+				spill(data);
+				return;
+			}
+			if (!room.tryAcquire(data.length)) {
+				if (connection.capacity > 1) {
+					spill(data);
+					return;
+				}
+				try {
+					if (!room.tryAcquire(data.length, timeout, TimeUnit.MILLISECONDS)) {
+						abort(new IOException("FastCGI output from " + address + " not read in time"));
+						return;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abort(new IOException(e));
+					return;
+				}
+			}
+			if (!aborted) {
+				stdout.add(data);
+			}
+		}
+
+		/**
+		 * Append output to the spill file, starting one if need be; once
+		 * spilling, everything after goes there too so the order holds
+		 */
+		private void spill(byte[] data) {
+			if (aborted) {
+				return;
+			}
+			if (spilled + data.length > SPILL_LIMIT) {
+				abort(new IOException("FastCGI output from " + address + " overflowed a slow client's "
+						+ SPILL_LIMIT + " byte spill file"));
+				return;
+			}
+			try {
+				if (spill == null) {
+					if (spilled > 0) {
+						return; // the output was closed; nobody wants the rest
+					}
+					Path path = Files.createTempFile("fastcgi", ".out");
+					spill = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+							StandardOpenOption.DELETE_ON_CLOSE);
+				}
+				ByteBuffer source = ByteBuffer.wrap(data);
+				while (source.hasRemaining()) {
+					spill.write(source, spilled + source.position());
+				}
+			} catch (IOException e) {
+				abort(new IOException("FastCGI output from " + address + " could not be spilled: " + e, e));
+				return;
+			}
+			spilled += data.length; // only this thread writes it
+			stdout.add(SPILLED);
+		}
+
+		/**
+		 * Delete the spill file, if there is one
+		 */
+		private void closeSpill() {
+			FileChannel file = spill;
+			spill = null;
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+				}
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return stdin;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return output;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return InputStream.nullInputStream(); // stderr records are logged
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			ended.await();
+			return exitValue;
+		}
+
+		@Override
+		public boolean waitFor(long time, TimeUnit unit) throws InterruptedException {
+			return ended.await(time, unit);
+		}
+
+		@Override
+		public int exitValue() {
+			if (ended.getCount() > 0) {
+				throw new IllegalThreadStateException("FastCGI request still running");
+			}
+			return exitValue;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return ended.getCount() > 0;
+		}
+
+		/**
+		 * Tell the responder to give up on the request, e.g. because the
+		 * client went away. The request id stays taken until the responder
+		 * confirms with FCGI_END_REQUEST.
+		 */
+		@Override
+		public void destroy() {
+			abort(null);
+		}
+
+		/**
+		 * @param cause-
+		 *            why the output is cut short, thrown to whoever is still
+		 *            reading it, or null if nobody is
+		 */
+		private void abort(IOException cause) {
+			if (!isAlive() || aborted) {
+				return;
+			}
+			if (cause != null) {
+				LOGGER.log(Level.WARNING, cause.getMessage() + ", aborting the request");
+				failure = cause;
+			}
+			aborted = true;
+			stdout.clear();
+			stdout.add(END_OF_OUTPUT);
+			closeSpill();
+			try {
+				connection.write(id, ABORT_REQUEST, END_OF_OUTPUT, 0, 0);
+			} catch (IOException e) {
+				connection.fail(e);
+			}
+		}
+	}
+}
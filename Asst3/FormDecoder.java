@@ -0,0 +1,92 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes an application/x-www-form-urlencoded body on its way through:
+ * '+' becomes a space and %XX the byte it stands for. An escape split
+ * across two writes is carried over, so a body of any size can be decoded
+ * as it streams past in fixed-size chunks. A malformed escape throws
+ * IllegalArgumentException, as URLDecoder does.
+ */
+class FormDecoder extends FilterOutputStream {
+
+	private final byte[] buf = new byte[8 * 1024];
+	private int count = 0;
+	private int escape = -1; // hex digits of a %XX seen so far, -1 outside an escape
+	private int value = 0;
+
+	FormDecoder(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * @return the decoded form of a whole body
+	 */
+	static byte[] decode(byte[] encoded) throws IOException {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream(encoded.length);
+		try (FormDecoder decoder = new FormDecoder(decoded)) {
+			decoder.write(encoded, 0, encoded.length);
+		}
+		return decoded.toByteArray();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (escape >= 0) {
+			int digit = Character.digit(b, 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern");
+			}
+			value = value * 16 + digit;
+			if (++escape == 2) {
+				put(value);
+				escape = -1;
+			}
+		} else if (b == '%') {
+			escape = 0;
+			value = 0;
+		} else if (b == '+') {
+			put(' ');
+		} else {
+			put(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			write(b[i]);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (escape >= 0) {
+				throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+			}
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void put(int b) throws IOException {
+		if (count == buf.length) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+		buf[count++] = (byte) b;
+	}
+}
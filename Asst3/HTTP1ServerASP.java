@@ -1,24 +1,22 @@
 import java.net.*;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.AccessDeniedException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.Path;
-import java.util.Locale;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,7 +24,14 @@ public class HTTP1ServerASP {
 
 	private ServerSocket serverSocket; // the main socket for the server
 	private int port; // which port it exists on gotten from command line
+	private String mode = "pool"; // how connections are handed to workers
+	// first, since the statics below may start HTTPThread, whose own statics log
 	private static final Logger LOGGER = Logger.getLogger(HTTP1ServerASP.class.getName());
+	// queue between the acceptor and the workers in pool and nio mode
+	static final Admission ADMISSION = Admission.fromProperties();
+	// per client address, checked as connections are accepted and as requests are taken up
+	static final RateLimiter CONNECTION_LIMIT = RateLimiter.connections();
+	static final RateLimiter REQUEST_LIMIT = RateLimiter.requests();
 
 	/**
 	 * Constructor to start the server and creates a new thread for each
@@ -37,7 +42,14 @@ public class HTTP1ServerASP {
 		// Initialize a serverSocket to accept clients
 		try {
 			this.port = Integer.parseInt(args[0]);
-			this.serverSocket = new ServerSocket(port);
+			if (args.length > 1) {
+				this.mode = args[1].toLowerCase();
+			}
+			// a channel underneath gives every client socket one too, which the
+			// selector needs and which allows sendfile and gathering writes
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			this.serverSocket = channel.socket();
 
 		} catch (Exception e) {
 			String error = getStackTrace(e);
@@ -57,29 +69,49 @@ public class HTTP1ServerASP {
 	}
 
 	/**
-	 * Allow the server to accept the client where, in a state of rest, the
-	 * server can accept at most 5 clients at once. Otherwise, a max of 50
-	 * clients can be accepted.
+	 * Accept clients and queue them for up to 50 worker threads
+	 * (-Dserver.workers). Admission control sheds queued clients with a 503
+	 * only once the queueing delay stays high, so bursts are absorbed, and a
+	 * client opening connections faster than its rate limit is turned away
+	 * with a 429 before it reaches the queue. A worker holds a connection
+	 * only while it reads and answers requests; between them a persistent
+	 * connection waits on a selector thread, so idle clients cannot starve
+	 * the pool. In nio
+	 * mode a selector reads request headers and only hands complete requests
+	 * to the same workers, and in virtual mode the pool is replaced by a
+	 * thread per connection.
 	 */
 	public void start() {
 		if (serverSocket != null && !serverSocket.isClosed()) {
-			String usage = "HTTP 1.0 server listening on port " + port;
-			// Get the ThreadFactory implementation to use
-			ThreadFactory threadFactory = Executors.defaultThreadFactory();
-			// creating the ThreadPoolExecutor
-			ThreadPoolExecutor executorPool = new ThreadPoolExecutor(5, 50, 0, TimeUnit.SECONDS,
-					new SynchronousQueue<Runnable>(), threadFactory);
+			String usage = "HTTP/1.1 server listening on port " + port + " (" + mode + " mode)";
+			if (mode.equals("virtual")) {
+				LOGGER.log(Level.INFO, usage);
+				startVirtual();
+				return;
+			}
 			Socket client = null;
 			LOGGER.log(Level.INFO, usage);
+			if (mode.equals("nio")) {
+				new SelectorLoop(serverSocket.getChannel(), port, ADMISSION).run();
+				return;
+			}
+			SelectorLoop idle;
+			try {
+				idle = SelectorLoop.idleConnections(port, ADMISSION);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e));
+				return;
+			}
 			while (serverSocket.isBound()) {
 				try { // Accept the client
 					client = serverSocket.accept();
 					client.setSoTimeout(3000); // set timeout to 3000
-					executorPool.execute(new HTTPThread(client, port));
-				} catch (RejectedExecutionException e) {
-					String serviceUnav = "Service Unavailable";
-					HTTPThread bad = new HTTPThread(client, port);
-					bad.returnResponse(503, serviceUnav.getBytes(), serviceUnav.length(), null);
+					long wait = CONNECTION_LIMIT.acquire(client.getInetAddress());
+					if (wait > 0) {
+						ADMISSION.limit(new HTTPThread(client, port), RateLimiter.retryAfter(wait));
+						continue;
+					}
+					ADMISSION.execute(new HTTPThread(client, port, idle));
 				} catch (Exception e) { // When we catch the error, print it out
 					String error = getStackTrace(e);
 					LOGGER.log(Level.SEVERE, error);
@@ -89,14 +121,68 @@ public class HTTP1ServerASP {
 		}
 	}
 
+	/**
+	 * Give every client its own virtual thread. Blocking reads and CGI waits
+	 * then park the virtual thread instead of holding one of 50 platform
+	 * threads, so the number of requests in flight is
+	 * limited by admission control (-Dserver.maxConcurrent, default 10000)
+	 * rather than by the pool size. Without virtual threads every connection
+	 * costs a platform thread, so the limit then defaults to -Dserver.workers
+	 * (50) instead, as many as the pool would have run. Clients over either
+	 * limit are answered by admission control's one shedding thread, so
+	 * turning them away starts no threads at all.
+	 */
+	private void startVirtual() {
+		ExecutorService executor = newVirtualExecutor();
+		int limit;
+		if (executor != null) {
+			limit = Integer.getInteger("server.maxConcurrent", 10000);
+		} else {
+			limit = Integer.getInteger("server.maxConcurrent", Integer.getInteger("server.workers", 50));
+			LOGGER.log(Level.WARNING, "Virtual threads are not available, using up to " + limit
+					+ " platform threads, one per connection");
+			executor = Executors.newCachedThreadPool();
+		}
+		ADMISSION.runDirectly(executor, limit);
+		Socket client = null;
+		while (serverSocket.isBound()) {
+			try { // Accept the client
+				client = serverSocket.accept();
+				client.setSoTimeout(3000); // set timeout to 3000
+				long wait = CONNECTION_LIMIT.acquire(client.getInetAddress());
+				if (wait > 0) {
+					ADMISSION.limit(new HTTPThread(client, port), RateLimiter.retryAfter(wait));
+					continue;
+				}
+				ADMISSION.execute(new HTTPThread(client, port));
+			} catch (Exception e) { // When we catch the error, print it out
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
+			}
+		}
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread per task, or null
+	 *         on JVMs older than Java 21, which have no virtual threads
+	 */
+	static ExecutorService newVirtualExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	/*
 	 * Instantiates the server class by passing in input array
 	 */
 	public static void main(String[] args) {
 		// Check that our arguments are correct. If not we print message and
 		// exit.
-		if (args.length != 1) {
-			LOGGER.log(Level.INFO, "Usage: java -cp . HTTP1ServerASP 3456");
+		if (args.length < 1 || args.length > 2) {
+			LOGGER.log(Level.INFO, "Usage: java -cp . HTTP1ServerASP 3456 [pool|nio|virtual]");
 			return;
 		}
 		System.setProperty("java.util.logging.SimpleFormatter.format",
@@ -110,244 +196,333 @@ public class HTTP1ServerASP {
 	 * Thread to handle each HTTP request
 	 */
 	static class HTTPThread implements Runnable {
+		// idle time allowed between requests on a persistent connection
+		static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("server.keepAliveTimeout", 5000);
+		// time allowed for a whole header block, however the bytes trickle in
+		static final int HEADER_TIMEOUT = Integer.getInteger("server.headerTimeout", 10000);
+		// time allowed for a request body: a base plus Content-Length at a minimum rate in bytes/s
+		static final int BODY_TIMEOUT = Integer.getInteger("server.bodyTimeout", 10000);
+		static final int BODY_MIN_RATE = Integer.getInteger("server.bodyMinRate", 500);
+		// runs the deadlines above; SO_TIMEOUT still bounds each single read
+		static final TimingWheel TIMERS = new TimingWheel(Long.getLong("server.timerTick", 100), 512);
+		// requests served on one connection before we ask the client to reconnect
+		static final int MAX_KEEP_ALIVE_REQUESTS = Integer.getInteger("server.maxKeepAliveRequests", 100);
+		// pipelined requests read ahead of the one being answered
+		static final int MAX_PIPELINE = Integer.getInteger("server.maxPipeline", 16);
+		// off-heap copies of small static files, -Dserver.cacheBytes=0 turns it off
+		static final StaticCache CACHE = new StaticCache(Long.getLong("server.cacheBytes", 32 * 1024 * 1024),
+				Long.getLong("server.cacheMaxEntry", 1024 * 1024));
+		// answers to CGI GETs that the script marked cacheable, off unless -Dserver.cgiCacheBytes is set
+		static final CgiCache CGI_CACHE = new CgiCache(Long.getLong("server.cgiCacheBytes", 0),
+				Long.getLong("server.cgiCacheMaxEntry", 256 * 1024), Long.getLong("server.cgiCacheMaxAge", 0));
+		// concurrent misses for the same file version or CGI GET wait this long for the first one's result
+		static final long COALESCE_WAIT = Long.getLong("server.coalesceWait", 5000);
+		static final SingleFlight<String, ByteBuffer> FILE_LOADS = new SingleFlight<>("file_loads");
+		static final SingleFlight<String, Boolean> CGI_RUNS = new SingleFlight<>("cgi_runs");
+		// files at least this big are served from memory mappings, 0 leaves them to transferTo
+		static final long MMAP_THRESHOLD = Long.getLong("server.mmapThreshold", 0);
+		static final MappedFiles MAPPED = new MappedFiles(Integer.getInteger("server.mmapMaxFiles", 256));
+		// CGI paths served by FastCGI responders, e.g. -Dserver.fastcgi=/cgi-bin/store.cgi=unix:/tmp/store.sock
+		static final Map<String, FastCgiPool> FASTCGI = FastCgiPool.parseMappings(System.getProperty("server.fastcgi"),
+				Integer.getInteger("server.fastcgiConnections", 4), Long.getLong("server.fastcgiTimeout", 30000));
+		// Java handlers answering path prefixes in-process, ahead of CGI; none unless asked for,
+		// e.g. -Dserver.handlers=/cgi-bin/store.cgi=StoreHandler
+		static final Map<String, Handler> HANDLERS = loadHandlers(System.getProperty("server.handlers", ""));
+		// POST bodies up to this size are read into memory and form bodies decoded there; bigger
+		// ones stream into the script as sent, so CONTENT_LENGTH always matches what stdin carries
+		static final long CGI_BUFFERED_BODY = Long.getLong("server.cgiBufferedBody", 64 * 1024);
+		// copies streamed request bodies into CGI stdin while the worker reads stdout
+		private static final ExecutorService CGI_INPUT = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "cgi-input");
+			t.setDaemon(true);
+			return t;
+		});
+		// runs CGI scripts again for stale cached answers, one refresh per answer at a time
+		private static final ExecutorService CGI_REFRESH = Executors.newFixedThreadPool(2, r -> {
+			Thread t = new Thread(r, "cgi-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		static final Metrics METRICS = new Metrics();
+		// answered from METRICS for loopback clients, before any file is looked up; empty turns it off
+		static final String STATUS_PATH = System.getProperty("server.statusPath", "/server-status");
+		// written by a background thread; -Dserver.accessLog=file appends there instead of stderr
+		static final AccessLog ACCESS_LOG = openAccessLog();
+		// closes finished connections off the worker, -Dserver.lingerMillis=0 closes them at once
+		static final LingeringClose LINGER = LingeringClose.fromProperties();
+
+		// status lines and the header bytes that never change, encoded once
+		private static final byte[][] STATUS_10 = new byte[600][];
+		private static final byte[][] STATUS_11 = new byte[600][];
+		static {
+			for (int status = 100; status < 600; status++) {
+				STATUS_10[status] = ("HTTP/1.0 " + codeString(status) + "\r\n").getBytes();
+				STATUS_11[status] = ("HTTP/1.1 " + codeString(status) + "\r\n").getBytes();
+			}
+		}
+		private static final byte[] CRLF = "\r\n".getBytes();
+		private static final byte[] END_OF_HEADER = "\r\n\r\n".getBytes();
+		private static final byte[] DATE = "Date: ".getBytes();
+		private static final byte[] ALLOW = "Allow: GET, POST, HEAD\r\n".getBytes();
+		private static final byte[] CONTENT_ENCODING = "Content-Encoding: identity\r\n".getBytes();
+		private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes();
+		private static final byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes();
+		private static final byte[] KEEP_ALIVE = ("Keep-Alive: timeout=" + (KEEP_ALIVE_TIMEOUT / 1000) + ", max=")
+				.getBytes();
+		private static final byte[] EXPIRES = "Expires: ".getBytes();
+		private static final byte[] LAST_MODIFIED = "Last-Modified: ".getBytes();
+		private static final byte[] CONTENT_TYPE = "Content-Type: ".getBytes();
+		private static final byte[] CONTENT_TYPE_TEXT = "Content-Type: text/plain\r\n".getBytes();
+		private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes();
+		private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n\r\n".getBytes();
+		private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+		private static final byte[] RETRY_AFTER = "Retry-After: ".getBytes();
 		private Socket clientSocket;
 		private int port;
 		private String reqStr;
-		private InputStream in = null;
+		private long started = System.nanoTime(); // when the current request was taken up
+		private long sent; // when its response was written
+		private RequestParser in = null;
+		private byte[] preRead; // bytes already taken off the socket by the selector
+		private int preReadLength;
+		private SelectorLoop selector; // set in pool and nio mode to take back idle connections
+		private boolean handedOff = false;
+		private boolean lingering = false; // the socket belongs to LINGER now
+		private Future<Boolean> pumping; // a request body still being copied into CGI stdin
+		private boolean keepAlive = false; // whether the current request may be followed by another
+		private int served = 0; // requests handled on this connection
+		private ArrayDeque<ReqObj> pipeline = new ArrayDeque<>(); // requests read but not yet answered
+		private ResponseWriter writer = null;
+		private int retryAfter = 0; // seconds a shed client is asked to wait
+		private ReqObj current; // the request being answered, for the metrics
+		private int route = Metrics.OTHER; // how it was answered
+		private TimingWheel.Timeout deadline; // for the header block, body or keep-alive wait under way
+		private volatile boolean expired = false; // a deadline passed and the input was shut down
 
 		HTTPThread(Socket c, int port) {
 			this.port = port;
 			this.clientSocket = c;
 		}
 
+		HTTPThread(Socket c, int port, SelectorLoop selector) {
+			this(c, port);
+			this.selector = selector;
+		}
+
+		HTTPThread(Socket c, int port, byte[] preRead, int preReadLength, int served, SelectorLoop selector) {
+			this(c, port);
+			this.preRead = preRead;
+			this.preReadLength = preReadLength;
+			this.served = served;
+			this.selector = selector;
+		}
+
 		/**
-		 * Add appropriate response depdning on the status code
+		 * Add appropriate reason phrase depdning on the status code
 		 */
-		private String codeString(int status) {
+		static String codeString(int status) {
 			switch (status) {
 			case 200:
-				return "HTTP/1.0 200 OK";
+				return "200 OK";
+
+			case 201:
+				return "201 Created";
+
+			case 202:
+				return "202 Accepted";
 
 			case 204:
-				return "HTTP/1.0 204 No Content";
+				return "204 No Content";
+
+			case 301:
+				return "301 Moved Permanently";
+
+			case 302:
+				return "302 Found";
+
+			case 303:
+				return "303 See Other";
 
 			case 304:
-				return "HTTP/1.0 304 Not Modified";
+				return "304 Not Modified";
+
+			case 307:
+				return "307 Temporary Redirect";
+
+			case 401:
+				return "401 Unauthorized";
 
 			case 400:
-				return "HTTP/1.0 400 Bad Request";
+				return "400 Bad Request";
 
 			case 403:
-				return "HTTP/1.0 403 Forbidden";
+				return "403 Forbidden";
 
 			case 404:
-				return "HTTP/1.0 404 Not Found";
+				return "404 Not Found";
 
 			case 405:
-				return "HTTP/1.0 405 Method Not Allowed";
+				return "405 Method Not Allowed";
 
 			case 408:
-				return "HTTP/1.0 408 Request Timeout";
+				return "408 Request Timeout";
+
+			case 410:
+				return "410 Gone";
 
 			case 411:
-				return "HTTP/1.0 411 Length Required";
+				return "411 Length Required";
+
+			case 413:
+				return "413 Payload Too Large";
+
+			case 429:
+				return "429 Too Many Requests";
 
 			case 500:
-				return "HTTP/1.0 500 Internal Server Error";
+				return "500 Internal Server Error";
 
 			case 501:
-				return "HTTP/1.0 501 Not Implemented";
+				return "501 Not Implemented";
 
 			case 503:
-				return "HTTP/1.0 503 Service Unavailable";
+				return "503 Service Unavailable";
 
 			case 505:
-				return "HTTP/1.0 505 HTTP Version Not Supported";
+				return "505 HTTP Version Not Supported";
 
 			default:
-				return "HTTP/1.0 200 OK";
+				return "200 OK";
 			}
 		}
 
 		/**
-		 * Log exactly when the request was made with date and time
+		 * @return the pre-encoded status line and its CRLF, answering HTTP/1.1
+		 *         requests as HTTP/1.1 and everything else as HTTP/1.0
 		 */
-		private String logBuilder(int status) {
-			StringBuilder pre = new StringBuilder();
-			String addr = clientSocket.getInetAddress().getHostName();
-			int clientPort = clientSocket.getPort();
-			pre.append(addr + ":" + clientPort + " - ");
-			pre.append(reqStr + " - ");
-			pre.append(status);
-			return pre.toString();
+		private static byte[] statusLine(int status, ReqObj request) {
+			byte[][] lines = http11(request) ? STATUS_11 : STATUS_10;
+			if (status >= 100 && status < lines.length) {
+				return lines[status];
+			}
+			return lines[200];
 		}
 
 		/**
-		 * @param req-
-		 *            the request inputted by the user to be parsed
-		 * @return a ReqObj containing the method and path to resource This
-		 *         method will parse a request string and return a request
-		 *         object
-		 **/
-		private ReqObj parseReq(String req) {
-			// Make sure request isnt null
-			if (req == null) {
-				return null;
-			}
-			String[] reqArr = req.split(" ");
-			String method;
-			float ver = 0;
-			// Make sure that method request is formatted correctly
-			if (reqArr.length == 3 && reqArr[0].length() > 0 && reqArr[0].chars().allMatch(Character::isLetter)
-					&& reqArr[0].toUpperCase().equals(reqArr[0])) {
-				// set method
-				method = reqArr[0];
-			} else {
-				return null;
-
-			}
-
-			if (reqArr[2].length() > 0) {
-				String[] verArr = reqArr[2].split("/");
-				if (verArr.length != 2) {
-					return null;
-				}
-				if (verArr[0].equals("HTTP") && verArr[1].split("\\.").length == 2) {
-					try {
-						String[] verNum = verArr[1].split("\\.");
-						if (verNum[0].length() != 1 || verNum[1].length() != 1)
-							return null;
-						ver = Float.parseFloat(verArr[1]);
-					} catch (Exception e) {
-						return null;
-					}
-				} else {
-					return null;
-				}
-			}
-			// Set paths to be merged
-			if (reqArr[1].length() > 0 && reqArr[1].charAt(0) == '/') {
-				try {
-					String queryString = null;
-					String relativePath = java.net.URLDecoder.decode(reqArr[1], "UTF-8");
-					String[] queryMaybe = relativePath.split("\\?");
-					if(queryMaybe.length > 1) {
-						queryString = queryMaybe[1];
-						relativePath = queryMaybe[0];
-					}
-					String workingDir = System.getProperty("user.dir");
-					File dir = new File(workingDir);
-					File fullPath = new File(dir, relativePath);
-					return new ReqObj(method, fullPath, ver, relativePath,queryString);
-				} catch (Exception e) {
-					String error = getStackTrace(e);
-					LOGGER.log(Level.SEVERE, error);
-					return null;
-				}
-
-			} else { // bad path request
-				return null;
-			}
-
+		 * @return the pre-encoded HTTP/1.1 status line and its CRLF, for
+		 *         answers sent before any request could be parsed
+		 */
+		static byte[] statusLine(int status) {
+			return status >= 100 && status < STATUS_11.length ? STATUS_11[status] : STATUS_11[200];
 		}
 
 		/**
-		 * @param input-
-		 *            The input string to be parsed
-		 * @return a date with correct format upon parsing
+		 * @return whether this is an HTTP/1.1 request
 		 */
-		private Date parseDate(String input) {
-			SimpleDateFormat parser = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-			parser.setTimeZone(TimeZone.getTimeZone("GMT"));
-			try {
-				return parser.parse(input);
-
-			} catch (ParseException e) {
-				String error = getStackTrace(e);
-				LOGGER.log(Level.SEVERE, error);
-				return null;
-			}
+		private static boolean http11(ReqObj req) {
+			return req != null && req.httpVer > 1.05 && req.httpVer < 1.15;
 		}
 
 		/**
-		 * @param headerParts-
-		 *            An array containing the parts of a header
 		 * @param req-
-		 *            A request object input Set the if-modified-since parameter
-		 *            of header
+		 *            the parsed request
+		 * @return whether the client asked for the connection to stay open,
+		 *         which is the default for HTTP/1.1 and opt-in for HTTP/1.0
 		 */
-		private void parseHeaderParam(String[] headerParts, ReqObj req) {
-			String headerData = headerParts[1];
-			if (headerData.charAt(0) == ' ') {
-				headerData = headerData.substring(1);
-			}
-			if (headerParts[0].equalsIgnoreCase("if-modified-since")) {
-				Date ifModified = parseDate(headerData);
-				if (ifModified != null) {
-					req.ifModified = true;
-					req.ifModifiedDate = ifModified;
-				}
-			}
-			if (headerParts[0].equalsIgnoreCase("content-length")) {
-				long lengthHeader = -1;
-				try {
-					lengthHeader = Long.parseLong(headerData);
-				} catch (Exception e) {
-					String error = getStackTrace(e);
-					LOGGER.log(Level.SEVERE, error);
-				}
-				if (lengthHeader >= 0) {
-					req.lengthHeader = true;
-					req.lengthHeaderData = lengthHeader;
-				}
-			}
-			if (headerParts[0].equalsIgnoreCase("Content-Type")
-					&& headerData.equalsIgnoreCase("application/x-www-form-urlencoded")) {
-				req.typeHeader = true;
+		private boolean wantsKeepAlive(ReqObj req) {
+			if (http11(req)) {
+				return !req.connectionClose;
 			}
-			if(headerParts[0].equalsIgnoreCase("Content-Type")){
-				if(headerData.split("multipart/form-data").length > 1){
-					String[] secondPart = headerData.split("boundary=");
-					if(secondPart.length > 1){
-						String boundary = secondPart[1];
-						req.boundary = boundary;
-					}
-				}
+			return req.connectionKeepAlive;
+		}
+
+		/**
+		 * @return whether the connection can carry another request after this
+		 *         response. Errors that may leave unread bytes on the socket,
+		 *         or a request body nobody consumed, force it closed.
+		 */
+		private boolean persist(int status, ReqObj request) {
+			if (!keepAlive || request == null) {
+				return false;
 			}
-			if (headerParts[0].equalsIgnoreCase("From")) {
-				req.fromField = headerData;
+			switch (status) {
+			case 400:
+			case 408:
+			case 411:
+			case 429:
+			case 500:
+			case 503:
+			case 505:
+				return false;
+			default:
+				return !request.chunked && !request.unknownCoding
+						&& (!request.lengthHeader || request.lengthHeaderData == 0 || request.bodyRead);
 			}
-			if (headerParts[0].equalsIgnoreCase("User-Agent")) {
-				req.userAgent = headerData;
+		}
+
+		/**
+		 * Wait up to the keep-alive timeout for the client to start another
+		 * request. In pool and nio mode an idle connection is given back to a
+		 * selector instead of holding this worker. In virtual mode it keeps
+		 * its thread, which without virtual threads is one of the
+		 * -Dserver.maxConcurrent platform threads for up to
+		 * -Dserver.keepAliveTimeout (5s).
+		 *
+		 * @return true if a new request is arriving on this thread
+		 */
+		private boolean awaitNextRequest() throws IOException {
+			if (selector != null && in.available() == 0) {
+				handedOff = true;
+				selector.resume(clientSocket.getChannel(), served);
+				return false;
 			}
-			if (headerParts[0].equalsIgnoreCase("Cookie")) {
-				if(headerData.split("=").length > 1){
-					req.cookieStr = headerData;
+			clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			arm(KEEP_ALIVE_TIMEOUT);
+			try {
+				if (in.peek() == -1) {
+					return false; // closed, or idle too long; either way close quietly
 				}
+			} catch (SocketTimeoutException e) {
+				return false;
+			} finally {
+				disarm();
 			}
+			clientSocket.setSoTimeout(3000);
+			return !expired;
 		}
 
 		/**
-		 * @param header-
-		 *            A list of contents of the header
-		 * @param req-
-		 *            A input request object This method parses the header
-		 *            contents into a request object
-		 */
-		private void parseHeader(List<String> header, ReqObj req) {
-			for (String headerStr : header) {
-				if (headerStr != null && headerStr.length() > 0) {
-					String[] headerParts = headerStr.split(":", 2);
-					if (headerParts.length == 2 && headerParts[0].length() > 0 && headerParts[1].length() > 0) {
-						parseHeaderParam(headerParts, req);
-					}
+		 * @param status-
+		 *            the status code sent
+		 * @param bytes-
+		 *            length of the body sent
+		 * Hand the access log record to the log writer, without waiting for it
+		 */
+		private void accessLog(int status, long bytes) {
+			long end = sent - started > 0 ? sent : System.nanoTime();
+			ACCESS_LOG.log(clientSocket.getInetAddress(), clientSocket.getPort(), reqStr, status, bytes,
+					end - started);
+			METRICS.record(current != null ? current.httpMethod : null, status, bytes, route, end - started);
+		}
+
+		private static AccessLog openAccessLog() {
+			int capacity = Integer.getInteger("server.accessLogCapacity", 8192);
+			boolean resolve = Boolean.getBoolean("server.accessLogResolve");
+			try {
+				return new AccessLog(capacity, System.getProperty("server.accessLog"), resolve);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e));
+				try {
+					return new AccessLog(capacity, null, resolve);
+				} catch (IOException impossible) {
+					throw new IllegalStateException(impossible);
 				}
 			}
 		}
 
 		/**
 		 * @param request-
-		 *            a ReqObj containing method and path filled in by parseReq
+		 *            a ReqObj containing method and path filled in by RequestParser
 		 *            this method will perform the requested method, though only
 		 *            GET works.
 		 */
@@ -359,7 +534,22 @@ public class HTTP1ServerASP {
 			String wrongVer = "HTTP Version Not Supported";
 			// NEED TO CHANGE THIS BACK to 1.0
 			if (ver > 0 && (1.1 - ver) > -0.0001) {
+				if (request.unknownCoding) { // nor can we tell where its body ends
+					returnResponse(501, notImpl.getBytes(), notImpl.length(), request);
+					return;
+				}
+				if (isStatusRequest(request)) {
+					doStatus(request);
+					return;
+				}
 				getFileInfo(request);
+				Handler handler = longestPrefix(HANDLERS, request.relativePath);
+				if (handler != null && (method.equals("GET") || method.equals("POST") || method.equals("HEAD"))) {
+					if (!rejectForHandler(request)) {
+						doHandler(request, handler);
+					}
+					return;
+				}
 				switch (method) {
 				case "GET":
 					doGet(request, false);
@@ -455,203 +645,756 @@ public class HTTP1ServerASP {
 
 
 		/**
-		 * @param pc
-		 * This method will parse the cookie set by the server
-		 * @return- the type of cookie set by the server
+		 * @param p-
+		 *            the script to feed
+		 * @param req-
+		 *            the request whose body it reads
+		 * Copy the request body from the connection into the script's stdin a
+		 * chunk at a time, as sent, while the calling thread reads the
+		 * script's output. Once the script stops
+		 * reading, the rest of the body is read and dropped so the next
+		 * request on the connection starts in the right place.
+		 * @return true if the whole body was taken off the connection
 		 */
-		String parseCookie(String pc){
-			String[] split = pc.split("Set-Cookie:");
-			if(split.length > 1){
-				return pc;
-			} else{
-				return null;
+		private boolean pumpInput(Process p, ReqObj req) {
+			RequestBody body = new RequestBody(in, req.lengthHeaderData);
+			OutputStream stdin = p.getOutputStream();
+			byte[] chunk = new byte[8 * 1024];
+			try {
+				int n;
+				while ((n = body.read(chunk, 0, chunk.length)) != -1) {
+					if (stdin == null) {
+						continue;
+					}
+					try {
+						stdin.write(chunk, 0, n);
+					} catch (IOException e) {
+						closeQuietly(stdin);
+						stdin = null;
+					}
+				}
+				return !body.truncated();
+			} catch (IOException e) {
+				if (!clientSocket.isClosed()) // otherwise the response is out and the connection was not kept
+					LOGGER.log(Level.SEVERE, getStackTrace(e));
+				return false;
+			} finally {
+				if (stdin != null) {
+					closeQuietly(stdin);
+				}
+			}
+		}
+
+		private static void closeQuietly(OutputStream stdin) {
+			try {
+				stdin.close();
+			} catch (IOException | IllegalArgumentException e) {
+				// the script is gone or the body ended inside an escape
 			}
 		}
 
 		/**
-		 * @param Process p
-		 * Recieve the output of the execution of a CGI file
-		 */
-		private String getOutput(Process p, ReqObj req) {
-			try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));) {
-				StringBuilder builder = new StringBuilder();
-				StringBuilder cookieResp = new StringBuilder();
-				String line = null;
-				// may need to account for when nothing is printed back
-				while ((line = reader.readLine()) != null) {
-					if (builder.length() == 0) {
-						if(parseCookie(line) != null){
-							cookieResp.append(line + "\r\n");
-						} else{
-							builder.append(line);
-						}
-					} else {
-						if(parseCookie(line) != null){
-							cookieResp.append(line + "\r\n");
-						} else{
-							builder.append(System.getProperty("line.separator")); //OS-dependent line separator
-							builder.append(line);
-						}
+		 * Wait for the body pump to finish; it gives up by itself when the
+		 * client stalls past the socket timeout
+		 */
+		private boolean awaitInput(Future<Boolean> input) {
+			try {
+				return input.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e.getCause()));
+				return false;
+			}
+		}
 
-					}
+		/**
+		 * @param millis-
+		 *            time allowed for what is read next
+		 * Start a deadline on the wheel. If it passes before disarm() the
+		 * connection's input is shut down, which ends the blocked read with
+		 * end of stream, and expired is set for the reader to find.
+		 */
+		private void arm(long millis) {
+			disarm();
+			deadline = TIMERS.schedule(this::expire, millis);
+		}
 
+		/**
+		 * @param length-
+		 *            Content-Length of the body about to be read
+		 */
+		private void armBody(long length) {
+			arm(BODY_TIMEOUT + length * 1000 / Math.max(1, BODY_MIN_RATE));
+		}
+
+		/**
+		 * Stop the running deadline; one that fired meanwhile still counts
+		 */
+		private void disarm() {
+			if (deadline != null) {
+				if (!deadline.cancel()) {
+					expired = true;
 				}
-				if(cookieResp.length() > 0){
-					req.cookieResp = cookieResp.toString();
-				}
-				return builder.toString();
-			} catch (Exception e) {
-				String error = getStackTrace(e);
-				LOGGER.log(Level.SEVERE, error);
-				return null;
+				deadline = null;
+			}
+		}
+
+		private void expire() {
+			expired = true;
+			try {
+				clientSocket.shutdownInput();
+			} catch (IOException e) {
+				// closed already
 			}
 		}
 
 		/**
-		 * @param req- THe request Object
-		 * This method will perform a POST request as defined in
-		 * the request object. It will correctly parse the resource
-		 * and properly execute the CGI file. Appropriate responses
-		 * are returned depending on the error type (if any).
+		 * Answer 408 to a request whose body did not arrive in time
 		 */
-		private void doPost(ReqObj req) {
-			if (!req.lengthHeader) {
-				String noLength = "Length Required";
-				returnResponse(411, noLength.getBytes(), noLength.length(), req);
-				return;
-			} else if (!req.typeHeader && req.boundary == null) {
-				String noType = "Internal Server Error";
-				returnResponse(500, noType.getBytes(), noType.length(), req);
-				return;
+		private void requestTimeout(ReqObj req) {
+			byte[] reqTimeout = "Request Timeout".getBytes();
+			returnResponse(408, reqTimeout, reqTimeout.length, req);
+		}
+
+		/**
+		 * The response went out advertising keep-alive but the request body
+		 * was not read to its end, so the connection cannot be reused
+		 */
+		private void closeAfterPartialBody() {
+			keepAlive = false;
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e));
 			}
-			File file = req.resource;
-			if (file.exists() && !file.isDirectory()) {
-				String filePath = req.resource.toString();
-				String[] extArr = filePath.split("\\.");
-				String ext = extArr[extArr.length - 1].toLowerCase();
-				if (!ext.equalsIgnoreCase("cgi")) {
-					returnResponse(405, "Method Not Allowed".getBytes(), "Method Not Allowed".length(), req);
+		}
+
+		/**
+		 * Send the script's output as it is produced. Output that is complete
+		 * by the time the headers are known goes out with a Content-Length;
+		 * otherwise HTTP/1.1 clients get it chunked and HTTP/1.0 clients get it
+		 * delimited by closing the connection.
+		 *
+		 * @param cgi-
+		 *            the running script's output, headers already parsed
+		 * @param req-
+		 *            the request it answers
+		 */
+		private void returnCgi(CgiOutput cgi, ReqObj req) {
+			boolean head = req.httpMethod.equals("HEAD");
+			int status = cgi.status() != 0 ? cgi.status() : 200;
+			req.status = status;
+			req.contentType = cgi.contentType();
+			req.cookieResp = cgi.cookies();
+			req.cgiHeaders = cgi.headers();
+			long length = 0;
+			try (CgiOutput body = cgi) {
+				if (body.bufferRest()) {
+					byte[] stdout = body.buffered();
+					if (stdout.length == 0 && status == 200) {
+						req.status = 204;
+						returnResponse(204, null, 0, req);
+					} else if (head) {
+						returnResponse(status, null, stdout.length, req);
+					} else {
+						returnResponse(status, stdout, stdout.length, req);
+					}
 					return;
 				}
-				if (file.canExecute() && file.canRead()) { //execute cgi file
-					byte[] payload = getPayload(req.lengthHeaderData);
-					if (payload != null) {
-						byte[] stdout = null;
-						long length = 0;
-						try {
-							if(req.boundary == null){
-							payload = java.net.URLDecoder.decode(new String(payload), "UTF-8").getBytes();
-							}
-							String hostIP = Inet4Address.getLocalHost().getHostAddress();
-							ProcessBuilder pb = new ProcessBuilder(filePath);
-							pb.redirectErrorStream(true);
-							Map<String, String> env = pb.environment();
-							env.put("CONTENT_LENGTH", String.valueOf(payload.length));
-							env.put("SCRIPT_NAME", req.relativePath);
-							env.put("SERVER_NAME", hostIP);
-							env.put("REQUEST_METHOD", req.httpMethod);
-							env.put("SERVER_PORT", String.valueOf(port));
-							if (req.fromField != null)
-								env.put("HTTP_FROM", req.fromField);
-							if (req.userAgent != null)
-								env.put("HTTP_USER_AGENT", req.userAgent);
-							if(req.cookieStr != null){
-								env.put("HTTP_COOKIE", req.cookieStr);
-							}
-							Process p = pb.start();
-							sendInput(p, payload);
-							String output = getOutput(p, req);
-							if (output != null && output.length() == 0) {
-								req.status = 204;
-							} else if (output != null) {
-								req.status = 200;
-								stdout = output.getBytes();
-								length = output.length();
-							}
-						} catch (Exception e) {
-							String error = getStackTrace(e);
-							LOGGER.log(Level.SEVERE, error);
-							returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(),
-									req);
-							return;
-						}
-						returnResponse(req.status, stdout, length, req);
-					} else {
-						returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(), req);
+				boolean chunked = http11(req);
+				keepAlive = chunked && persist(status, req);
+				ResponseWriter w = writer();
+				w.put(statusLine(status, req));
+				doHeader(w, req, status);
+				w.put(chunked && !head ? TRANSFER_ENCODING_CHUNKED : CRLF);
+				byte[] chunk = new byte[8 * 1024];
+				int count;
+				while ((count = body.read(chunk, 0, chunk.length)) != -1) {
+					if (head || count == 0) {
+						continue;
+					}
+					if (chunked) {
+						w.putHex(count);
+						w.put(CRLF);
+					}
+					w.put(chunk, 0, count);
+					if (chunked) {
+						w.put(CRLF);
+					}
+					length += count;
+					if (body.available() == 0) {
+						w.flush(); // the script went quiet, let the client have what we have
 					}
-				} else {
-					returnResponse(403, "Forbidden".getBytes(), "Forbidden".length(), req);
 				}
-			} else {
-				returnResponse(404, "File not found".getBytes(), "File not found".length(), req);
+				if (chunked && !head) {
+					w.put(LAST_CHUNK);
+				}
+				finish(status);
+			} catch (Exception e) {
+				keepAlive = false; // the body is incomplete, the connection cannot be reused
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
 			}
+			accessLog(status, length);
 		}
 
 		/**
-		 * @req- The Request Object
-		 * This method will properly execute a CGI file from
-		 * a given HTTP request from a certain user agent.
-		 * Appropriate response is returned, possibly notifying
-		 * of errors, if there are any. 
+		 * @return true for a GET or HEAD of the status page from this machine;
+		 *         anyone else gets whatever file is at that path
 		 */
-		private void doCGI(ReqObj req) {
-				File file = req.resource;
-				String filePath = req.resource.toString();
-				if (file.canExecute() && file.canRead()) { //execute cgi file
-						byte[] stdout = null;
-						long length = 0;
-						try {
-							String hostIP = Inet4Address.getLocalHost().getHostAddress();
-							ProcessBuilder pb = new ProcessBuilder(filePath);
-							pb.redirectErrorStream(true);
-							Map<String, String> env = pb.environment();
-							env.put("SCRIPT_NAME", req.relativePath);
-							env.put("SERVER_NAME", hostIP);
-							env.put("SERVER_PORT", String.valueOf(port));
-							env.put("REQUEST_METHOD", req.httpMethod);
-							if(req.queryParam != null) {
-								env.put("QUERY_STRING", req.queryParam);
-							}
-							if (req.fromField != null)
-								env.put("HTTP_FROM", req.fromField);
-							if (req.userAgent != null)
-								env.put("HTTP_USER_AGENT", req.userAgent);
-							if(req.cookieStr != null){
-								env.put("HTTP_COOKIE", req.cookieStr);
-							}
-							Process p = pb.start();
-							String output = getOutput(p, req);
-							if (output != null && output.length() == 0) {
-								req.status = 204;
-							} else if (output != null) {
-								req.status = 200;
-								stdout = output.getBytes();
-								length = output.length();
-							}
-						} catch (Exception e) {
-							String error = getStackTrace(e);
-							LOGGER.log(Level.SEVERE, error);
-							returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(),
-									req);
-							return;
-						}
-						returnResponse(req.status, stdout, length, req);
-				} else {
-					returnResponse(403, "Forbidden".getBytes(), "Forbidden".length(), req);
-				}
+		private boolean isStatusRequest(ReqObj request) {
+			return !STATUS_PATH.isEmpty() && STATUS_PATH.equals(request.relativePath)
+					&& (request.httpMethod.equals("GET") || request.httpMethod.equals("HEAD"))
+					&& clientSocket.getInetAddress().isLoopbackAddress();
 		}
 
 		/**
-		 * @param req-
-		 *            the GET request This method will perform get a resource
-		 *            defined in the ReqObj. Then it will call return response
+		 * @param request-
+		 *            a request for the status page
+		 * Report the server's counters as JSON, or in the Prometheus text
+		 * format when asked for with ?format=prometheus
+		 */
+		private void doStatus(ReqObj request) {
+			boolean prometheus = request.queryParam != null && request.queryParam.contains("format=prometheus");
+			Map<String, Long> gauges = new LinkedHashMap<>();
+			gauges.put("workers_active", (long) ADMISSION.active());
+			gauges.put("queue_length", (long) ADMISSION.queued());
+			gauges.put("admitted_total", ADMISSION.admitted.sum());
+			gauges.put("shed_total", ADMISSION.shed.sum());
+			gauges.put("queue_overflow_total", ADMISSION.overflowed.sum());
+			gauges.put("closed_unanswered_total", ADMISSION.closed.sum());
+			gauges.put("static_cache_hits_total", CACHE.hits());
+			gauges.put("static_cache_misses_total", CACHE.misses());
+			gauges.put("static_cache_evictions_total", CACHE.evictions());
+			gauges.put("static_cache_bytes", CACHE.usedBytes());
+			gauges.put("cgi_cache_hits_total", CGI_CACHE.hits());
+			gauges.put("cgi_cache_stale_hits_total", CGI_CACHE.staleHits());
+			gauges.put("cgi_cache_misses_total", CGI_CACHE.misses());
+			gauges.put("cgi_cache_stores_total", CGI_CACHE.stores());
+			gauges.put("cgi_cache_refreshes_total", CGI_CACHE.refreshes());
+			gauges.put("cgi_cache_evictions_total", CGI_CACHE.evictions());
+			gauges.put("cgi_cache_entries", (long) CGI_CACHE.size());
+			gauges.put("cgi_cache_bytes", CGI_CACHE.usedBytes());
+			FILE_LOADS.report(gauges);
+			CGI_RUNS.report(gauges);
+			gauges.put("mmap_hits_total", MAPPED.hits());
+			gauges.put("mmap_maps_total", MAPPED.maps());
+			gauges.put("access_log_dropped_total", ACCESS_LOG.dropped());
+			CONNECTION_LIMIT.report(gauges);
+			REQUEST_LIMIT.report(gauges);
+			gauges.put("timers_pending", (long) TIMERS.pending());
+			gauges.put("timers_expired_total", TIMERS.expired.sum());
+			gauges.put("lingering", (long) LINGER.lingering());
+			gauges.put("lingered_total", LINGER.lingered.sum());
+			gauges.put("linger_closed_early_total", LINGER.closedEarly.sum());
+			gauges.put("linger_overflow_total", LINGER.overflowed.sum());
+			String text = prometheus ? METRICS.prometheus(gauges) : METRICS.json(gauges);
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			request.contentType = prometheus ? "text/plain; version=0.0.4" : "application/json";
+			request.cgiHeaders = "Cache-Control: no-store\r\n";
+			request.lastModified = System.currentTimeMillis();
+			if (request.httpMethod.equals("HEAD")) {
+				returnResponse(200, null, body.length, request);
+			} else {
+				returnResponse(200, body, body.length, request);
+			}
+		}
+
+		/**
+		 * @param req-
+		 *            a request a handler is registered for
+		 * @return true if it was answered with an error, after the checks
+		 *         doPost() and doCGI() make before running the script the
+		 *         handler stands in for: a POST needs a Content-Length and a
+		 *         form or multipart Content-Type, and the script must exist
+		 *         and be readable and executable
+		 */
+		private boolean rejectForHandler(ReqObj req) {
+			boolean post = req.httpMethod.equals("POST");
+			if (post) {
+				route = Metrics.CGI_POST;
+				if (!req.lengthHeader || req.chunked) {
+					String noLength = "Length Required";
+					returnResponse(411, noLength.getBytes(), noLength.length(), req);
+					return true;
+				} else if (!req.typeHeader && req.boundary == null) {
+					String noType = "Internal Server Error";
+					returnResponse(500, noType.getBytes(), noType.length(), req);
+					return true;
+				}
+			} else {
+				route = Metrics.CGI_GET;
+			}
+			File file = req.resource;
+			if (!file.exists() || file.isDirectory()) {
+				returnResponse(404, "File not found".getBytes(), "File not found".length(), req);
+				return true;
+			}
+			if (post && !file.getName().toLowerCase().endsWith(".cgi")) {
+				returnResponse(405, "Method Not Allowed".getBytes(), "Method Not Allowed".length(), req);
+				return true;
+			}
+			if (!file.canExecute() || !file.canRead()) {
+				returnResponse(403, "Forbidden".getBytes(), "Forbidden".length(), req);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @param req-
+		 *            the request
+		 * @param handler-
+		 *            the in-process handler registered for its path
+		 * Let the handler answer the request, handing it the body as a stream
+		 * that ends at Content-Length. Whatever it leaves unread is skipped so
+		 * the next request on the connection can be read.
+		 */
+		private void doHandler(ReqObj req, Handler handler) {
+			route = req.httpMethod.equals("POST") ? Metrics.CGI_POST : Metrics.CGI_GET;
+			if (req.chunked) {
+				String noLength = "Length Required";
+				returnResponse(411, noLength.getBytes(), noLength.length(), req);
+				return;
+			}
+			Handler.Response response = new Handler.Response();
+			long length = req.lengthHeader ? req.lengthHeaderData : 0;
+			try {
+				InputStream body = new RequestBody(in, length);
+				if (length > 0) {
+					armBody(length);
+				}
+				try {
+					handler.handle(req, body, response);
+					body.skip(Long.MAX_VALUE);
+				} finally {
+					disarm();
+				}
+				if (expired) {
+					requestTimeout(req);
+					return;
+				}
+				req.bodyRead = true;
+			} catch (Exception e) {
+				if (expired) { // the handler tripped over the body we cut short
+					requestTimeout(req);
+					return;
+				}
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
+				returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(), req);
+				return;
+			}
+			byte[] content = response.content();
+			int status = response.status();
+			if (content.length == 0 && status == 200) {
+				status = 204;
+			}
+			req.status = status;
+			req.contentType = response.contentType();
+			req.cookieResp = response.cookies();
+			req.cgiHeaders = response.headers();
+			if (req.lastModified == 0) {
+				req.lastModified = System.currentTimeMillis(); // generated now
+			}
+			if (req.httpMethod.equals("HEAD") || status == 204) {
+				returnResponse(status, null, content.length, req);
+			} else {
+				returnResponse(status, content, content.length, req);
+			}
+		}
+
+		/**
+		 * @param mappings-
+		 *            comma separated "path-prefix=ClassName" pairs
+		 * @return an instance of each handler class, keyed by path prefix
+		 */
+		private static Map<String, Handler> loadHandlers(String mappings) {
+			Map<String, Handler> handlers = new HashMap<>();
+			for (String mapping : mappings.split(",")) {
+				int eq = mapping.indexOf('=');
+				if (eq <= 0) {
+					continue;
+				}
+				String className = mapping.substring(eq + 1).trim();
+				try {
+					Object handler = Class.forName(className).getDeclaredConstructor().newInstance();
+					handlers.put(mapping.substring(0, eq).trim(), (Handler) handler);
+				} catch (Exception e) {
+					LOGGER.log(Level.SEVERE, "Cannot load handler " + className + ": " + e);
+				}
+			}
+			return handlers;
+		}
+
+		/**
+		 * @return the value mapped to the longest prefix of path, or null
+		 */
+		private static <T> T longestPrefix(Map<String, T> mappings, String path) {
+			T found = null;
+			int longest = -1;
+			for (Map.Entry<String, T> mapping : mappings.entrySet()) {
+				String prefix = mapping.getKey();
+				if (path.startsWith(prefix) && prefix.length() > longest) {
+					found = mapping.getValue();
+					longest = prefix.length();
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * @param filePath-
+		 *            the script
+		 * @param req-
+		 *            the request it answers
+		 * @param env-
+		 *            the CGI variables for it
+		 * @return the script running in a new process, or the request on its
+		 *         way to the FastCGI responder mapped to its path
+		 */
+		private Process startCgi(String filePath, ReqObj req, Map<String, String> env) throws IOException {
+			env.put("SCRIPT_FILENAME", filePath);
+			FastCgiPool pool = longestPrefix(FASTCGI, req.relativePath);
+			if (pool != null) {
+				return pool.start(env);
+			}
+			ProcessBuilder pb = new ProcessBuilder(filePath);
+			pb.redirectErrorStream(true);
+			pb.environment().putAll(env);
+			return pb.start();
+		}
+
+		/**
+		 * @param p-
+		 *            the started script
+		 * @return its output with the headers read
+		 */
+		private CgiOutput cgiOutput(Process p) throws IOException {
+			CgiOutput cgi = new CgiOutput(p);
+			try {
+				cgi.parseHeaders();
+			} catch (IOException e) {
+				cgi.close();
+				throw e;
+			}
+			return cgi;
+		}
+
+		/**
+		 * @param req- THe request Object
+		 * This method will perform a POST request as defined in
+		 * the request object. It will correctly parse the resource
+		 * and properly execute the CGI file. Appropriate responses
+		 * are returned depending on the error type (if any).
+		 */
+		private void doPost(ReqObj req) {
+			route = Metrics.CGI_POST;
+			if (!req.lengthHeader || req.chunked) { // a chunked body outranks any Content-Length
+				String noLength = "Length Required";
+				returnResponse(411, noLength.getBytes(), noLength.length(), req);
+				return;
+			} else if (!req.typeHeader && req.boundary == null) {
+				String noType = "Internal Server Error";
+				returnResponse(500, noType.getBytes(), noType.length(), req);
+				return;
+			}
+			File file = req.resource;
+			if (file.exists() && !file.isDirectory()) {
+				String filePath = req.resource.toString();
+				String[] extArr = filePath.split("\\.");
+				String ext = extArr[extArr.length - 1].toLowerCase();
+				if (!ext.equalsIgnoreCase("cgi")) {
+					returnResponse(405, "Method Not Allowed".getBytes(), "Method Not Allowed".length(), req);
+					return;
+				}
+				if (file.canExecute() && file.canRead()) { //execute cgi file
+					boolean stream = req.lengthHeaderData > CGI_BUFFERED_BODY;
+					byte[] payload = null;
+					if (!stream) {
+						armBody(req.lengthHeaderData);
+						payload = getPayload(req.lengthHeaderData);
+						disarm();
+						if (expired) {
+							requestTimeout(req);
+							return;
+						}
+						req.bodyRead = payload != null;
+						if (payload == null) {
+							returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(), req);
+							return;
+						}
+					}
+					CgiOutput cgi;
+					Future<Boolean> input = null;
+					try {
+						long length = req.lengthHeaderData; // a streamed body is passed on undecoded
+						if (!stream) {
+							if (req.boundary == null) {
+								payload = FormDecoder.decode(payload);
+							}
+							length = payload.length;
+						}
+						String hostIP = Inet4Address.getLocalHost().getHostAddress();
+						Map<String, String> env = new HashMap<>();
+						env.put("CONTENT_LENGTH", String.valueOf(length));
+						env.put("SCRIPT_NAME", req.relativePath);
+						env.put("SERVER_NAME", hostIP);
+						env.put("REQUEST_METHOD", req.httpMethod);
+						env.put("SERVER_PORT", String.valueOf(port));
+						if (req.fromField != null)
+							env.put("HTTP_FROM", req.fromField);
+						if (req.userAgent != null)
+							env.put("HTTP_USER_AGENT", req.userAgent);
+						if(req.cookieStr != null){
+							env.put("HTTP_COOKIE", req.cookieStr);
+						}
+						Process p = startCgi(filePath, req, env);
+						if (stream) {
+							// taken as read unless the pump says otherwise once the response is out
+							req.bodyRead = true;
+							armBody(req.lengthHeaderData); // a body that stalls is cut short rather than answered 408
+							input = CGI_INPUT.submit(() -> pumpInput(p, req));
+							pumping = input;
+						} else {
+							sendInput(p, payload);
+						}
+						cgi = cgiOutput(p);
+					} catch (Exception e) {
+						String error = getStackTrace(e);
+						LOGGER.log(Level.SEVERE, error);
+						if (input != null) {
+							disarm();
+							req.bodyRead = false;
+						}
+						returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(),
+								req);
+						return;
+					}
+					returnCgi(cgi, req);
+					if (input != null) {
+						boolean complete = awaitInput(input);
+						disarm();
+						pumping = null;
+						if (!complete) {
+							closeAfterPartialBody();
+						} else if (!keepAlive) {
+							linger();
+						}
+					}
+				} else {
+					returnResponse(403, "Forbidden".getBytes(), "Forbidden".length(), req);
+				}
+			} else {
+				returnResponse(404, "File not found".getBytes(), "File not found".length(), req);
+			}
+		}
+
+		/**
+		 * @req- The Request Object
+		 * This method will properly execute a CGI file from
+		 * a given HTTP request from a certain user agent.
+		 * Appropriate response is returned, possibly notifying
+		 * of errors, if there are any. 
+		 */
+		private void doCGI(ReqObj req) {
+				route = Metrics.CGI_GET;
+				File file = req.resource;
+				String filePath = req.resource.toString();
+				if (file.canExecute() && file.canRead()) { //execute cgi file
+						CgiCache.Request cacheKey = null;
+						if (CGI_CACHE.enabled()) {
+							cacheKey = new CgiCache.Request(req.relativePath, req.queryParam, req.cookieStr,
+									req.userAgent, req.fromField, req.authorization);
+							if (returnCached(cacheKey, filePath, req)) {
+								return;
+							}
+							if (req.httpMethod.equals("GET")) {
+								// the same GET already running answers us too if what it gets is cacheable
+								SingleFlight<String, Boolean>.Flight flight = CGI_RUNS
+										.join(CGI_CACHE.flightKey(cacheKey));
+								if (flight.leader()) {
+									runCgi(filePath, req, cacheKey, flight);
+									return;
+								}
+								if (Boolean.TRUE.equals(flight.await(COALESCE_WAIT))
+										&& returnCached(cacheKey, filePath, req)) {
+									return;
+								}
+							}
+						}
+						runCgi(filePath, req, req.httpMethod.equals("GET") ? cacheKey : null, null);
+				} else {
+					returnResponse(403, "Forbidden".getBytes(), "Forbidden".length(), req);
+				}
+		}
+
+		/**
+		 * @param filePath-
+		 *            the script
+		 * @param req-
+		 *            the GET or HEAD it answers
+		 * @param cacheAs-
+		 *            where to offer the output to the CGI cache, or null
+		 * @param flight-
+		 *            the identical GETs waiting on this one, or null; told
+		 *            whether the answer was cached as soon as that is known,
+		 *            before it is sent
+		 */
+		private void runCgi(String filePath, ReqObj req, CgiCache.Request cacheAs,
+				SingleFlight<String, Boolean>.Flight flight) {
+			CgiOutput cgi;
+			boolean cached = false;
+			try {
+				Process p = startCgi(filePath, req, cgiEnvironment(req));
+				p.getOutputStream().close(); // no request body
+				cgi = cgiOutput(p);
+				if (cacheAs != null) {
+					cached = cacheCgi(cgi, cacheAs);
+				}
+			} catch (Exception e) {
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
+				returnResponse(500, "Internal Server Error".getBytes(), "Internal Server Error".length(), req);
+				return;
+			} finally {
+				if (flight != null) {
+					flight.finish(cached);
+				}
+			}
+			returnCgi(cgi, req);
+		}
+
+		/**
+		 * @param cgi-
+		 *            the running script's output, headers already parsed
+		 * @param key-
+		 *            what the request asks of the script
+		 * @return whether the answer is now in the CGI cache. If its headers
+		 *         allow that, the whole output is read first; either way it
+		 *         stays in cgi to be sent.
+		 */
+		private boolean cacheCgi(CgiOutput cgi, CgiCache.Request key) throws IOException {
+			int status = cgi.status() != 0 ? cgi.status() : 200;
+			String headers = cgi.headers();
+			long now = System.currentTimeMillis();
+			if (!CGI_CACHE.cacheable(key, status, cgi.cookies(), headers, now)
+					|| !cgi.bufferAll((int) CGI_CACHE.maxEntry())) {
+				return false;
+			}
+			return CGI_CACHE.put(key, status, cgi.contentType(), cgi.cookies(), headers, cgi.buffered(), now);
+		}
+
+		/**
+		 * @param req-
+		 *            a GET or HEAD of a CGI script
+		 * @return the CGI variables for running the script on its behalf
+		 */
+		private Map<String, String> cgiEnvironment(ReqObj req) throws UnknownHostException {
+			String hostIP = Inet4Address.getLocalHost().getHostAddress();
+			Map<String, String> env = new HashMap<>();
+			env.put("SCRIPT_NAME", req.relativePath);
+			env.put("SERVER_NAME", hostIP);
+			env.put("SERVER_PORT", String.valueOf(port));
+			env.put("REQUEST_METHOD", req.httpMethod);
+			if (req.queryParam != null) {
+				env.put("QUERY_STRING", req.queryParam);
+			}
+			if (req.fromField != null)
+				env.put("HTTP_FROM", req.fromField);
+			if (req.userAgent != null)
+				env.put("HTTP_USER_AGENT", req.userAgent);
+			if (req.cookieStr != null) {
+				env.put("HTTP_COOKIE", req.cookieStr);
+			}
+			return env;
+		}
+
+		/**
+		 * @param key-
+		 *            what the request asks of the script
+		 * @param filePath-
+		 *            the script
+		 * @param req-
+		 *            the GET or HEAD being answered
+		 * @return true if the answer came from the CGI cache. A stale answer is
+		 *         sent as it is while the script runs again in the background.
+		 */
+		private boolean returnCached(CgiCache.Request key, String filePath, ReqObj req) {
+			long now = System.currentTimeMillis();
+			CgiCache.Entry cached = CGI_CACHE.get(key, now);
+			if (cached == null) {
+				return false;
+			}
+			if (!cached.fresh(now) && CGI_CACHE.claimRefresh(cached)) {
+				try {
+					CGI_REFRESH.execute(() -> refreshCached(key, cached, filePath, req));
+				} catch (RejectedExecutionException e) {
+					CGI_CACHE.refreshFailed(cached);
+				}
+			}
+			byte[] body = cached.body();
+			req.status = cached.status();
+			req.contentType = cached.contentType();
+			req.cgiHeaders = cached.headers(now);
+			if (req.httpMethod.equals("HEAD")) {
+				returnResponse(req.status, null, body.length, req);
+			} else {
+				returnResponse(req.status, body, body.length, req);
+			}
+			return true;
+		}
+
+		/**
+		 * @param key-
+		 *            what the stale answer was cached under
+		 * @param stale-
+		 *            the answer being replaced
+		 * @param filePath-
+		 *            the script
+		 * @param req-
+		 *            the request that found the answer stale, for the CGI
+		 *            variables; nothing is sent to its client
+		 * Run the script as a GET and cache what it says now. Runs on a
+		 * cgi-refresh thread, so it only touches the request's headers.
+		 */
+		private void refreshCached(CgiCache.Request key, CgiCache.Entry stale, String filePath, ReqObj req) {
+			boolean stored = false;
+			try {
+				Map<String, String> env = cgiEnvironment(req);
+				env.put("REQUEST_METHOD", "GET");
+				Process p = startCgi(filePath, req, env);
+				p.getOutputStream().close(); // no request body
+				try (CgiOutput cgi = cgiOutput(p)) {
+					int status = cgi.status() != 0 ? cgi.status() : 200;
+					byte[] body = cgi.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, CGI_CACHE.maxEntry() + 1));
+					stored = CGI_CACHE.put(key, status, cgi.contentType(), cgi.cookies(), cgi.headers(), body,
+							System.currentTimeMillis());
+				}
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e));
+			} finally {
+				if (!stored) {
+					CGI_CACHE.refreshFailed(stale);
+				}
+			}
+		}
+
+		/**
+		 * @param req-
+		 *            the GET request This method will perform get a resource
+		 *            defined in the ReqObj. Then it will call return response
 		 *            with the correct status and content. If there is an error
 		 *            in fetching the resource give null content, and the
 		 *            correct code.
 		 **/
 		private void doGet(ReqObj req, boolean head) {
+			route = Metrics.STATIC;
 			File file = req.resource;
 			byte[] contents = "".getBytes();
+			long length = 0;
 			// file must not be a directory and has to exist
 			if (file.exists() && !file.isDirectory()) {
 				String filePath = req.resource.toString();
@@ -662,18 +1405,40 @@ public class HTTP1ServerASP {
 					return;
 				}
 				if (req.ifModified && !head) {
-					long lastModified = req.date.getTime();
-					long ifModified = req.ifModifiedDate.getTime();
-					if (lastModified < ifModified) {
+					if (req.lastModified < req.ifModifiedSince) {
 						req.status = 304;
 					}
 				}
 				if (req.status != 304) {
 					if (file.canRead()) { // file is readable
-						try { // read and return contents of file
-							Path path = Paths.get(file.toString());
-							contents = Files.readAllBytes(path);
-							req.status = 200;
+						// serve from the cache or a mapping, or stream the file rather than reading it into memory
+						try {
+							String key = file.getCanonicalPath();
+							ByteBuffer cached = null;
+							if (!head && MMAP_THRESHOLD > 0 && file.length() >= MMAP_THRESHOLD) {
+								cached = MAPPED.get(key, file);
+							} else if (!head) {
+								cached = CACHE.get(key, file.lastModified(), file.length());
+							}
+							if (cached != null) {
+								req.status = 200;
+								returnFile(null, cached, req);
+								return;
+							}
+							try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+								req.status = 200;
+								if (!head) {
+									// one read per file version however many miss it at once; the rest share its copy
+									long modified = file.lastModified();
+									SingleFlight<String, ByteBuffer>.Flight flight = FILE_LOADS.join(key + '@' + modified);
+									ByteBuffer loaded = flight.leader()
+											? flight.complete(() -> CACHE.load(key, channel, modified))
+											: flight.await(COALESCE_WAIT);
+									returnFile(channel, loaded != null ? loaded.duplicate() : null, req);
+									return;
+								}
+								length = channel.size();
+							}
 						} catch (AccessDeniedException e) {
 							String notReadable = "Forbidden";
 							contents = notReadable.getBytes();
@@ -697,6 +1462,8 @@ public class HTTP1ServerASP {
 			}
 			if (!head && req.status != 304) {
 				returnResponse(req.status, contents, contents.length, req);
+			} else if (req.status == 200) {
+				returnResponse(req.status, null, length, req);
 			} else {
 				returnResponse(req.status, null, contents.length, req);
 			}
@@ -714,28 +1481,17 @@ public class HTTP1ServerASP {
 				File file = req.resource;
 				// file must not be a directory and has to exist
 				if (file.exists() && !file.isDirectory()) {
-					req.date = (new Date(file.lastModified()));
+					req.lastModified = file.lastModified();
 				}
 			}
 		}
 
-		/**
-		 * @param date-
-		 *            the input date
-		 * @return the time of the server as a String
-		 */
-		private String getServerTime(Date date) {
-			SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-			dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
-			return dateFormat.format(date);
-		}
-
 		/**
 		 * @param ext-
 		 *            the file extension
 		 * @return the type of MIME depending on the file extension
 		 */
-		private String getMIME(String ext) {
+		static String getMIME(String ext) {
 			switch (ext) {
 			case "txt":
 			case "c":
@@ -775,115 +1531,299 @@ public class HTTP1ServerASP {
 		 *            status code
 		 * @return header content with necessary appended information
 		 */
-		private String doHeader(ReqObj obj, int status) {
-			String date = getServerTime(new Date());
-			StringBuilder header = new StringBuilder();
-			String[] extArr = null;
+		private void doHeader(ResponseWriter w, ReqObj obj, int status) throws IOException {
 			String ext = "";
 			if (obj != null) {
 				String filePath = obj.resource.toString();
-				extArr = filePath.split("\\.");
-				ext = extArr[extArr.length - 1].toLowerCase();
-			}
-			header.append("Date: " + date);
-			header.append("\r\n");
-			header.append("Allow: GET, POST, HEAD");
-			header.append("\r\n");
-			header.append("Content-Encoding: identity");
-			header.append("\r\n");
+				ext = filePath.substring(filePath.lastIndexOf('.') + 1).toLowerCase();
+			}
+			w.put(DATE);
+			w.put(HttpDates.now());
+			w.put(CRLF);
+			w.put(ALLOW);
+			w.put(CONTENT_ENCODING);
+			if ((status == 503 || status == 429) && retryAfter > 0) {
+				w.put(RETRY_AFTER);
+				w.putLong(retryAfter);
+				w.put(CRLF);
+			}
 			if(obj != null && obj.cookieResp != null){
-				header.append(obj.cookieResp);
+				w.putText(obj.cookieResp);
+			}
+			if (obj != null && obj.cgiHeaders != null) {
+				w.putText(obj.cgiHeaders);
+			}
+			if (keepAlive) {
+				if (!http11(obj)) {
+					w.put(CONNECTION_KEEP_ALIVE);
+				}
+				w.put(KEEP_ALIVE);
+				w.putLong(MAX_KEEP_ALIVE_REQUESTS - served);
+				w.put(CRLF);
+			} else if (http11(obj)) {
+				w.put(CONNECTION_CLOSE);
 			}
 			if (obj != null && (status == 200 || status == 304 || status == 204)) {
-				Date nowYear = new Date(System.currentTimeMillis() + 365 * 24 * 60 * 60 * 1000L);
-				header.append("Expires: " + getServerTime(nowYear));
-				header.append("\r\n");
-				header.append("Last-Modified: " + getServerTime(obj.date));
-				header.append("\r\n");
-				header.append("Content-Type: " + getMIME(ext));
-				header.append("\r\n");
+				w.put(EXPIRES);
+				w.put(HttpDates.expires());
+				w.put(CRLF);
+				w.put(LAST_MODIFIED);
+				w.put(HttpDates.lastModified(obj.lastModified));
+				w.put(CRLF);
+				w.put(CONTENT_TYPE);
+				w.putText(obj.contentType != null ? obj.contentType : getMIME(ext));
+				w.put(CRLF);
+			} else if (obj != null && obj.contentType != null) {
+				w.put(CONTENT_TYPE);
+				w.putText(obj.contentType);
+				w.put(CRLF);
 			} else {
 				// Content length for 404?
-				header.append("Content-Type: " + getMIME("txt"));
-				header.append("\r\n");
+				w.put(CONTENT_TYPE_TEXT);
 			}
-			return header.toString();
+		}
 
+		/**
+		 * @param retryAfter-
+		 *            seconds the client should wait before trying again
+		 * Turn the client away with a 503 without reading its request
+		 */
+		void shed(int retryAfter) {
+			refuse(503, retryAfter);
 		}
 
 		/**
 		 * @param status-
-		 *            the status code to be returned
-		 * @param content-
-		 *            a byte array containing the contents of what needs to get
-		 *            to client Print request and other info pertianing to the
-		 *            Client
-		 **/
-		private void returnResponse(int status, byte[] content, long length, ReqObj request) {
-			String log = logBuilder(status);
-			LOGGER.log(Level.INFO, log);
-			String procHeader = doHeader(request, status);
-			try (PrintStream pstream = new PrintStream(clientSocket.getOutputStream())) {
-				pstream.write((codeString(status) + "\r\n").getBytes());
-				pstream.write(procHeader.getBytes());
+		 *            503 when the server is overloaded, 429 when the client
+		 *            is over its rate limit
+		 * @param retryAfter-
+		 *            seconds the client should wait before trying again
+		 * Turn the client away without reading its request
+		 */
+		void refuse(int status, int retryAfter) {
+			this.retryAfter = retryAfter;
+			try { // unread request bytes would turn our close into a reset that loses the answer
+				InputStream raw = clientSocket.getInputStream();
+				int n;
+				while ((n = raw.available()) > 0) {
+					raw.skip(n);
+				}
+			} catch (IOException e) {
+				// answer anyway
+			}
+			String message = status == 429 ? "Too Many Requests" : "Service Unavailable";
+			returnResponse(status, message.getBytes(), message.length(), null);
+		}
+
+		/**
+		 * Drop the connection without answering, when even shedding is behind
+		 */
+		void close() {
+			try {
+				clientSocket.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, getStackTrace(e));
+			}
+		}
+
+		void returnResponse(int status, byte[] content, long length, ReqObj request) {
+			keepAlive = persist(status, request);
+			try {
+				ResponseWriter w = writer();
+				w.put(statusLine(status, request));
+				doHeader(w, request, status);
 				if (content != null) {
-					pstream.write(("Content-Length: " + content.length + "\r\n\r\n").getBytes());
-					pstream.write(content);
-					pstream.write("\r\n".getBytes());
+					w.put(CONTENT_LENGTH);
+					w.putLong(content.length);
+					w.put(END_OF_HEADER);
+					w.body(ByteBuffer.wrap(content));
+					if (!keepAlive) // a trailing CRLF would be read as the start of the next request
+						w.put(CRLF);
 				} else if (length != 0) {
-					pstream.write(("Content-Length: " + length + "\r\n\r\n").getBytes());
+					w.put(CONTENT_LENGTH);
+					w.putLong(length);
+					w.put(END_OF_HEADER);
 				} else {
-					pstream.write("\r\n".getBytes());
+					w.put(CRLF);
 				}
-				pstream.flush();
-				if (status != 503)
-					Thread.sleep(250);
-				clientSocket.close();
+				finish(status);
 			} catch (Exception e) {
+				keepAlive = false;
 				String error = getStackTrace(e);
 				LOGGER.log(Level.SEVERE, error);
 			}
+			accessLog(status, content != null ? content.length : 0);
+		}
+
+		/**
+		 * @param channel-
+		 *            the open file to send
+		 * @param cached-
+		 *            the file's contents from the static cache or a memory
+		 *            mapping, or null
+		 * @param request-
+		 *            the request it answers
+		 * Sends the headers, then either the cached off-heap copy / mapping
+		 * (in the same gathering write as the headers) or the file itself
+		 * through FileChannel.transferTo, which becomes sendfile on a socket
+		 * channel. Either way the file never has to fit in the heap.
+		 */
+		private void returnFile(FileChannel channel, ByteBuffer cached, ReqObj request) {
+			int status = 200;
+			keepAlive = persist(status, request);
+			long length = 0;
+			try {
+				length = cached != null ? cached.remaining() : channel.size();
+				ResponseWriter w = writer();
+				w.put(statusLine(status, request));
+				doHeader(w, request, status);
+				w.put(CONTENT_LENGTH);
+				w.putLong(length);
+				w.put(END_OF_HEADER);
+				if (cached != null) {
+					w.body(cached);
+				} else {
+					w.transfer(channel, length);
+				}
+				if (!keepAlive) // a trailing CRLF would be read as the start of the next request
+					w.put(CRLF);
+				finish(status);
+			} catch (Exception | InternalError e) { // InternalError: a mapped file was truncated under us
+				keepAlive = false; // the body is incomplete, the connection cannot be reused
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
+			}
+			accessLog(status, length);
+		}
+
+		/**
+		 * @param status-
+		 *            the status code just sent
+		 * Flush the response unless more pipelined answers follow, and close
+		 * the connection when it is not kept alive: a 503 at once, anything
+		 * else by handing it to LINGER
+		 */
+		private void finish(int status) throws IOException {
+			if (keepAlive && !pipeline.isEmpty()) {
+				sent = System.nanoTime();
+				return; // answers to pipelined requests go out together
+			}
+			writer().flush();
+			sent = System.nanoTime(); // lingering before the close is not part of the response time
+			if (keepAlive)
+				return;
+			if (status == 503) {
+				clientSocket.close();
+				return;
+			}
+			if (pumping == null) // otherwise the pump is still reading the socket; doPost hands it over after
+				linger();
+		}
+
+		/**
+		 * Give the connection to LINGER to close once the client has read
+		 * the response; nothing may touch the socket afterwards
+		 */
+		private void linger() {
+			lingering = true;
+			LINGER.close(clientSocket);
+		}
+
+		/**
+		 * @return the connection's response serializer; its buffer also lets
+		 *         the answers to a batch of pipelined requests share segments
+		 */
+		private ResponseWriter writer() {
+			if (writer == null) {
+				writer = new ResponseWriter(clientSocket);
+			}
+			return writer;
+		}
+
+		/**
+		 * @param req-
+		 *            a request read ahead
+		 * @return whether a body follows it on the stream, in which case we
+		 *         cannot look past it until the body has been consumed
+		 */
+		private boolean hasBody(ReqObj req) {
+			if (req.httpMethod == null || !(req.httpMethod.equals("GET") || req.httpMethod.equals("HEAD"))) {
+				return true;
+			}
+			return req.lengthHeader || req.chunked || req.unknownCoding;
+		}
+
+		/**
+		 * Read every further request the client has already pipelined behind
+		 * the one just read. They are answered strictly in arrival order and
+		 * their responses flushed together once the queue is empty.
+		 */
+		private void readAhead(File dir) throws IOException {
+			while (pipeline.size() < MAX_PIPELINE && !hasBody(pipeline.peekLast()) && in.requestBuffered()) {
+				ReqObj next = in.next(dir);
+				if (next == null) {
+					return;
+				}
+				pipeline.add(next);
+			}
 		}
 
 		@Override
 		/**
-		 * perform the client request if appropriate and within the alloted time
-		 * of 3s
+		 * perform the client requests if appropriate and within the alloted
+		 * time of 3s, serving as many as the client sends on a persistent
+		 * connection
 		 */
 		public void run() {
 			Socket client = null;
 			try {
 				client = clientSocket;
-				in = clientSocket.getInputStream();
-				// Reads the request from the client
-				List<String> header = new ArrayList<>();
-				// We got something so no more timeout
-
-				while (true) {
-					StringBuilder line = new StringBuilder();
-					char c = 0;
-
-					while (c != '\n' && c != Character.MAX_VALUE) {
-						c = (char) in.read();
-						line.append(Character.toString(c));
+				METRICS.connectionOpened();
+				in = new RequestParser(clientSocket.getInputStream(), preRead, preReadLength);
+				File dir = new File(System.getProperty("user.dir"));
+				do {
+					if (pipeline.isEmpty()) {
+						if (served > 0 && !awaitNextRequest()) {
+							return;
+						}
+						// Reads the request from the client, and any queued behind it
+						arm(HEADER_TIMEOUT);
+						ReqObj next;
+						try {
+							next = in.next(dir);
+						} finally {
+							disarm();
+						}
+						if (expired) {
+							throw new SocketTimeoutException("header block not complete in time");
+						}
+						if (next == null) {
+							return; // closed without sending a request
+						}
+						pipeline.add(next);
+						readAhead(dir);
 					}
-					if (line.toString().equals("\r\n") || line.toString().equals("\n") || c == Character.MAX_VALUE) {
-						break;
+					keepAlive = false;
+					ReqObj req = pipeline.poll();
+					reqStr = req.requestLine;
+					current = req;
+					route = Metrics.OTHER;
+					started = System.nanoTime();
+					served++;
+					long wait = req.httpMethod != null ? REQUEST_LIMIT.acquire(clientSocket.getInetAddress()) : 0;
+					if (wait > 0) {
+						retryAfter = RateLimiter.retryAfter(wait);
+						byte[] tooMany = "Too Many Requests".getBytes();
+						returnResponse(429, tooMany, tooMany.length, req);
+					} else if (req.httpMethod != null) {
+						keepAlive = wantsKeepAlive(req) && served < MAX_KEEP_ALIVE_REQUESTS;
+						doMethod(req);
 					} else {
-						header.add(line.toString().substring(0, line.toString().length() - 2));
+						// just incase we get null object
+						byte[] badReq = "Bad Request".getBytes();
+						returnResponse(400, badReq, badReq.length, null);
 					}
-				}
-				// Parse the request, we can do a switch case based on request
-				reqStr = header.get(0);
-				ReqObj req = parseReq(reqStr);
-				if (req != null) {
-					parseHeader(header, req);
-					doMethod(req);
-				} else {
-					// just incase we get null object
-					byte[] badReq = "Bad Request".getBytes();
-					returnResponse(400, badReq, badReq.length, null);
-				}
+				} while (keepAlive && !clientSocket.isClosed());
 			} catch (SocketTimeoutException e) {
 				byte[] reqTimeout = "Request Timeout".getBytes();
 				returnResponse(408, reqTimeout, reqTimeout.length, null);
@@ -895,7 +1835,10 @@ public class HTTP1ServerASP {
 				LOGGER.log(Level.SEVERE, error);
 				return;
 			} finally {
+				METRICS.connectionClosed();
 				try {
+					if (handedOff || lingering)
+						return; // the selector or the closer owns the connection now
 					if (client != null)
 						client.close();
 					if (in != null)
@@ -908,6 +1851,503 @@ public class HTTP1ServerASP {
 		}
 	}
 
+	/**
+	 * The body of one request: reads from the connection and reports end of
+	 * stream once Content-Length bytes have been read
+	 */
+	static class RequestBody extends InputStream {
+		private final InputStream in;
+		private long remaining;
+		private boolean truncated = false;
+
+		RequestBody(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b == -1) {
+				remaining = 0;
+				truncated = true;
+			} else {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int count = in.read(b, off, (int) Math.min(len, remaining));
+			if (count == -1) {
+				remaining = 0;
+				truncated = true;
+			} else {
+				remaining -= count;
+			}
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		/**
+		 * @return true if the connection ended before Content-Length bytes
+		 */
+		boolean truncated() {
+			return truncated;
+		}
+	}
+
+	/**
+	 * Buffered, byte-level reader for the requests arriving on one
+	 * connection. Request lines and headers are scanned in place in a
+	 * reusable buffer: header names are matched against the few we care
+	 * about without building strings, and only the values we keep are turned
+	 * into Strings. Whatever follows a header block (a body, or further
+	 * pipelined requests) stays in the buffer and is handed out through the
+	 * InputStream methods.
+	 */
+	static class RequestParser extends InputStream {
+		private static final int MAX_HEADER = 64 * 1024; // longest header block we accept
+
+		// the headers we act on, lower case
+		private static final byte[] IF_MODIFIED_SINCE = "if-modified-since".getBytes();
+		private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+		private static final byte[] CONTENT_TYPE = "content-type".getBytes();
+		private static final byte[] COOKIE = "cookie".getBytes();
+		private static final byte[] AUTHORIZATION = "authorization".getBytes();
+		private static final byte[] USER_AGENT = "user-agent".getBytes();
+		private static final byte[] FROM = "from".getBytes();
+		private static final byte[] CONNECTION = "connection".getBytes();
+		private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes();
+
+		private static final byte[] FORM_URLENCODED = "application/x-www-form-urlencoded".getBytes();
+		private static final byte[] MULTIPART = "multipart/form-data".getBytes();
+		private static final byte[] BOUNDARY = "boundary=".getBytes();
+		private static final byte[] CLOSE = "close".getBytes();
+		private static final byte[] KEEP_ALIVE = "keep-alive".getBytes();
+		private static final byte[] CHUNKED = "chunked".getBytes();
+		private static final byte[] IDENTITY = "identity".getBytes();
+
+		private final InputStream source;
+		private byte[] buf;
+		private int pos = 0; // next unread byte
+		private int limit = 0; // end of buffered data
+
+		RequestParser(InputStream source, byte[] initial, int length) {
+			this.source = source;
+			this.buf = new byte[Math.max(8192, length)];
+			if (initial != null) {
+				System.arraycopy(initial, 0, buf, 0, length);
+				limit = length;
+			}
+		}
+
+		/**
+		 * Read more from the socket, making room first by moving unread data
+		 * to the front or growing the buffer
+		 *
+		 * @return false at end of stream
+		 */
+		private boolean fill() throws IOException {
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, limit - pos);
+				limit -= pos;
+				pos = 0;
+			}
+			if (limit == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			int count = source.read(buf, limit, buf.length - limit);
+			if (count <= 0) {
+				return false;
+			}
+			limit += count;
+			return true;
+		}
+
+		/**
+		 * Take in whatever the socket already has without blocking
+		 */
+		private void fillAvailable() throws IOException {
+			int available = source.available();
+			if (available > 0 && limit - pos < MAX_HEADER) {
+				if (pos > 0) {
+					System.arraycopy(buf, pos, buf, 0, limit - pos);
+					limit -= pos;
+					pos = 0;
+				}
+				int count = source.read(buf, limit, Math.min(available, buf.length - limit));
+				if (count > 0) {
+					limit += count;
+				}
+			}
+		}
+
+		/**
+		 * @return the index just past the empty line ending the header block
+		 *         that starts at from, or -1 if it is not all in [from, to)
+		 */
+		static int findHeaderEnd(byte[] data, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (data[i] != '\n') {
+					continue;
+				}
+				if (i + 1 < to && data[i + 1] == '\n') {
+					return i + 2;
+				}
+				if (i + 2 < to && data[i + 1] == '\r' && data[i + 2] == '\n') {
+					return i + 3;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Drop empty lines in front of a request, as RFC 7230 asks servers to
+		 */
+		private void skipBlankLines() {
+			while (pos < limit && (buf[pos] == '\r' || buf[pos] == '\n')) {
+				pos++;
+			}
+		}
+
+		/**
+		 * @return whether a complete header block is already buffered, so
+		 *         that parsing it cannot block
+		 */
+		boolean requestBuffered() throws IOException {
+			fillAvailable();
+			skipBlankLines();
+			return pos < limit && findHeaderEnd(buf, pos, limit) >= 0;
+		}
+
+		/**
+		 * @return the next byte without consuming it, waiting for one if
+		 *         needed, or -1 at end of stream
+		 */
+		int peek() throws IOException {
+			if (pos == limit && !fill()) {
+				return -1;
+			}
+			return buf[pos] & 0xff;
+		}
+
+		/**
+		 * Reads and parses the next request line and its headers
+		 *
+		 * @param dir-
+		 *            the directory request paths are resolved against
+		 * @return the request, one with a null method if the request line is
+		 *         malformed, or null if the client closed the connection
+		 *         before sending anything
+		 */
+		ReqObj next(File dir) throws IOException {
+			int end;
+			int scanned = 0;
+			while (true) {
+				skipBlankLines();
+				end = findHeaderEnd(buf, pos + Math.max(0, scanned - 2), limit);
+				if (end >= 0) {
+					break;
+				}
+				if (limit - pos > MAX_HEADER) {
+					pos = limit;
+					return new ReqObj("");
+				}
+				scanned = limit - pos;
+				if (!fill()) {
+					if (pos == limit) {
+						return null;
+					}
+					end = limit; // take what we have, as a header cut short by the client
+					break;
+				}
+			}
+			int lineEnd = indexOf('\n', pos, end);
+			ReqObj req = requestLine(pos, trimEnd(pos, lineEnd), dir);
+			int start = lineEnd + 1;
+			while (req.httpMethod != null && start < end) {
+				lineEnd = indexOf('\n', start, end);
+				header(start, trimEnd(start, lineEnd), req);
+				start = lineEnd + 1;
+			}
+			pos = end;
+			return req;
+		}
+
+		private int indexOf(int b, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (buf[i] == b) {
+					return i;
+				}
+			}
+			return to;
+		}
+
+		/**
+		 * @return the end of the line without its carriage return
+		 */
+		private int trimEnd(int start, int end) {
+			while (end > start && (buf[end - 1] == '\r' || buf[end - 1] == ' ')) {
+				end--;
+			}
+			return end;
+		}
+
+		/**
+		 * Parse "METHOD /path?query HTTP/d.d" in [start, end)
+		 */
+		private ReqObj requestLine(int start, int end, File dir) {
+			String line = new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+			ReqObj bad = new ReqObj(line);
+			int methodEnd = indexOf(' ', start, end);
+			if (methodEnd == start || methodEnd == end) {
+				return bad;
+			}
+			for (int i = start; i < methodEnd; i++) {
+				if (buf[i] < 'A' || buf[i] > 'Z') {
+					return bad;
+				}
+			}
+			int targetEnd = indexOf(' ', methodEnd + 1, end);
+			if (targetEnd == end || buf[methodEnd + 1] != '/') {
+				return bad;
+			}
+			int v = targetEnd + 1;
+			if (end - v != 8 || buf[v] != 'H' || buf[v + 1] != 'T' || buf[v + 2] != 'T' || buf[v + 3] != 'P'
+					|| buf[v + 4] != '/' || !isDigit(buf[v + 5]) || buf[v + 6] != '.' || !isDigit(buf[v + 7])) {
+				return bad;
+			}
+			float ver = ((buf[v + 5] - '0') * 10 + (buf[v + 7] - '0')) / 10f;
+			try {
+				String queryString = null;
+				String relativePath = java.net.URLDecoder.decode(
+						new String(buf, methodEnd + 1, targetEnd - methodEnd - 1, StandardCharsets.ISO_8859_1), "UTF-8");
+				int query = relativePath.indexOf('?');
+				if (query >= 0) {
+					queryString = query + 1 < relativePath.length() ? relativePath.substring(query + 1) : null;
+					relativePath = relativePath.substring(0, query);
+				}
+				String method = line.substring(0, methodEnd - start);
+				ReqObj req = new ReqObj(method, new File(dir, relativePath), ver, relativePath, queryString);
+				req.requestLine = line;
+				return req;
+			} catch (Exception e) {
+				String error = getStackTrace(e);
+				LOGGER.log(Level.SEVERE, error);
+				return bad;
+			}
+		}
+
+		private static boolean isDigit(byte b) {
+			return b >= '0' && b <= '9';
+		}
+
+		/**
+		 * Parse one "Name: value" line in [start, end) into the request if it
+		 * is a header we use
+		 */
+		private void header(int start, int end, ReqObj req) {
+			int colon = indexOf(':', start, end);
+			if (colon == start || colon == end) {
+				return;
+			}
+			int vs = colon + 1;
+			while (vs < end && (buf[vs] == ' ' || buf[vs] == '\t')) {
+				vs++;
+			}
+			if (vs == end) {
+				return;
+			}
+			switch (colon - start) { // cheap pre-selection on name length
+			case 4:
+				if (nameIs(FROM, start)) {
+					req.fromField = string(vs, end);
+				}
+				break;
+			case 6:
+				if (nameIs(COOKIE, start) && indexOf('=', vs, end) < end) {
+					req.cookieStr = string(vs, end);
+				}
+				break;
+			case 10:
+				if (nameIs(USER_AGENT, start)) {
+					req.userAgent = string(vs, end);
+				} else if (nameIs(CONNECTION, start)) {
+					req.connectionClose = contains(vs, end, CLOSE);
+					req.connectionKeepAlive = contains(vs, end, KEEP_ALIVE);
+				}
+				break;
+			case 12:
+				if (nameIs(CONTENT_TYPE, start)) {
+					if (end - vs == FORM_URLENCODED.length && contains(vs, end, FORM_URLENCODED)) {
+						req.typeHeader = true;
+					} else if (contains(vs, end, MULTIPART)) {
+						int boundary = find(vs, end, BOUNDARY);
+						if (boundary >= 0 && boundary + BOUNDARY.length < end) {
+							req.boundary = string(boundary + BOUNDARY.length, end);
+						}
+					}
+				}
+				break;
+			case 13:
+				if (nameIs(AUTHORIZATION, start)) {
+					req.authorization = true;
+				}
+				break;
+			case 14:
+				if (nameIs(CONTENT_LENGTH, start)) {
+					long length = 0;
+					for (int i = vs; i < end; i++) {
+						if (!isDigit(buf[i]) || length > Long.MAX_VALUE / 10 - 9) {
+							LOGGER.log(Level.SEVERE, "Bad Content-Length: " + string(vs, end));
+							return;
+						}
+						length = length * 10 + (buf[i] - '0');
+					}
+					req.lengthHeader = true;
+					req.lengthHeaderData = length;
+				}
+				break;
+			case 17:
+				if (nameIs(IF_MODIFIED_SINCE, start)) {
+					long ifModifiedSince = HttpDates.parse(buf, vs, end);
+					if (ifModifiedSince >= 0) {
+						req.ifModified = true;
+						req.ifModifiedSince = ifModifiedSince;
+					} else {
+						LOGGER.log(Level.SEVERE, "Bad If-Modified-Since: " + string(vs, end));
+					}
+				} else if (nameIs(TRANSFER_ENCODING, start)) {
+					transferCodings(req, vs, end);
+				}
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Go through a Transfer-Encoding list, which continues any list from
+		 * an earlier Transfer-Encoding line. The body is chunked only if
+		 * chunked is the last coding; identity changes nothing, and any
+		 * other coding is one we cannot undo.
+		 */
+		private void transferCodings(ReqObj req, int start, int end) {
+			while (start < end) {
+				int comma = indexOf(',', start, end);
+				int to = indexOf(';', start, comma); // parameters do not matter
+				int from = start;
+				while (from < to && (buf[from] == ' ' || buf[from] == '\t')) {
+					from++;
+				}
+				while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) {
+					to--;
+				}
+				if (to > from) {
+					if (is(CHUNKED, from, to)) {
+						req.chunked = true;
+					} else if (!is(IDENTITY, from, to)) {
+						req.chunked = false;
+						req.unknownCoding = true;
+					}
+				}
+				start = comma + 1;
+			}
+		}
+
+		/**
+		 * @return whether [start, end) is the given lower case token,
+		 *         ignoring case
+		 */
+		private boolean is(byte[] token, int start, int end) {
+			return end - start == token.length && find(start, end, token) == start;
+		}
+
+		/**
+		 * @return whether the header name at start equals the given lower case
+		 *         name, ignoring case
+		 */
+		private boolean nameIs(byte[] name, int start) {
+			for (int i = 0; i < name.length; i++) {
+				byte c = buf[start + i];
+				if (name[i] == '-' ? c != '-' : (c | 0x20) != name[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return the index of the first case-insensitive match of the lower
+		 *         case needle in [start, end), or -1
+		 */
+		private int find(int start, int end, byte[] needle) {
+			outer: for (int i = start; i + needle.length <= end; i++) {
+				for (int j = 0; j < needle.length; j++) {
+					byte c = buf[i + j];
+					byte n = needle[j];
+					if (n >= 'a' && n <= 'z' ? (c | 0x20) != n : c != n) {
+						continue outer;
+					}
+				}
+				return i;
+			}
+			return -1;
+		}
+
+		private boolean contains(int start, int end, byte[] needle) {
+			return find(start, end, needle) >= 0;
+		}
+
+		private String string(int start, int end) {
+			return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pos == limit && !fill()) {
+				return -1;
+			}
+			return buf[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos == limit) {
+				return source.read(b, off, len); // nothing buffered, read straight through
+			}
+			int count = Math.min(len, limit - pos);
+			System.arraycopy(buf, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (limit - pos) + source.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+
 	/*
 	 * A request object holding the method type (GET, POST, etc.) and resource
 	 * to be read
@@ -920,8 +2360,8 @@ public class HTTP1ServerASP {
 		// perm: 0=doesnt exist, 1=read/no write, 2=read/write
 		private int status = 0;
 		private boolean ifModified = false;
-		private Date ifModifiedDate;
-		private Date date;
+		private long ifModifiedSince;
+		private long lastModified; // of the requested file
 		private boolean lengthHeader = false;
 		private long lengthHeaderData = 0;
 		private boolean typeHeader = false;
@@ -930,7 +2370,16 @@ public class HTTP1ServerASP {
 		private String fromField = null;
 		private String userAgent = null;
 		private String cookieStr = null;
+		private boolean authorization = false; // sent credentials, which only matters to the CGI cache
 		private String cookieResp = null;
+		private String contentType = null; // set by a CGI script
+		private String cgiHeaders = null; // other header lines from a CGI script or handler
+		private boolean connectionClose = false;
+		private boolean connectionKeepAlive = false;
+		private boolean chunked = false; // chunked is the last Transfer-Encoding, which we do not decode
+		private boolean unknownCoding = false; // a Transfer-Encoding other than chunked or identity
+		private boolean bodyRead = false;
+		private String requestLine = null; // as received, for the log
 
 		ReqObj(String httpMethod, File resource, float httpVer, String relativePath, String queryString) {
 			this.queryParam = queryString;
@@ -940,6 +2389,50 @@ public class HTTP1ServerASP {
 			this.httpVer = httpVer;
 		}
 
+		/**
+		 * A request whose request line could not be parsed
+		 */
+		ReqObj(String requestLine) {
+			this.requestLine = requestLine;
+		}
+
+		String method() {
+			return httpMethod;
+		}
+
+		/**
+		 * @return the decoded path, without the query string
+		 */
+		String path() {
+			return relativePath;
+		}
+
+		String query() {
+			return queryParam;
+		}
+
+		/**
+		 * @return the Cookie header, or null
+		 */
+		String cookies() {
+			return cookieStr;
+		}
+
+		String userAgent() {
+			return userAgent;
+		}
+
+		String from() {
+			return fromField;
+		}
+
+		/**
+		 * @return the Content-Length of the body, or -1 if there was none
+		 */
+		long contentLength() {
+			return lengthHeader ? lengthHeaderData : -1;
+		}
+
 	}
 
 }
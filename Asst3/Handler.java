@@ -0,0 +1,128 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Java code that answers the requests under a path prefix inside the
+ * server, in place of a CGI script: no process to start, no environment to
+ * build and no output to parse. Handlers are registered with
+ * -Dserver.handlers=/prefix=ClassName,... and need a public no-argument
+ * constructor; none are registered by default. A handler only sees
+ * requests that would have reached a CGI script: the script file must
+ * exist and be executable, and a POST needs Content-Length and
+ * Content-Type. One instance answers every request for its prefix, from
+ * many threads at once.
+ */
+interface Handler {
+
+	/**
+	 * @param request-
+	 *            the parsed request
+	 * @param body-
+	 *            the request body, empty if there is none
+	 * @param response-
+	 *            what to answer
+	 */
+	void handle(HTTP1ServerASP.ReqObj request, InputStream body, Response response) throws Exception;
+
+	/**
+	 * The answer a handler builds. It is sent with a Content-Length once the
+	 * handler returns.
+	 */
+	final class Response {
+		private int status = 200;
+		private String contentType = "text/html";
+		private final StringBuilder cookies = new StringBuilder();
+		private final StringBuilder headers = new StringBuilder();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		public void setStatus(int status) {
+			this.status = status;
+		}
+
+		public void setContentType(String contentType) {
+			this.contentType = contentType;
+		}
+
+		/**
+		 * @param cookie-
+		 *            the value of a Set-Cookie header, e.g. "name=bob; expires=..."
+		 */
+		public void addCookie(String cookie) {
+			cookies.append("Set-Cookie: ").append(cookie).append("\r\n");
+		}
+
+		public void addHeader(String name, String value) {
+			headers.append(name).append(": ").append(value).append("\r\n");
+		}
+
+		public void write(String text) {
+			body.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+		}
+
+		public void write(byte[] bytes) {
+			body.writeBytes(bytes);
+		}
+
+		int status() {
+			return status;
+		}
+
+		String contentType() {
+			return contentType;
+		}
+
+		String cookies() {
+			return cookies.length() > 0 ? cookies.toString() : null;
+		}
+
+		String headers() {
+			return headers.length() > 0 ? headers.toString() : null;
+		}
+
+		byte[] content() {
+			return body.toByteArray();
+		}
+	}
+
+	/**
+	 * @param query-
+	 *            a query string, form body or cookie header, e.g.
+	 *            "a=1&b=x+y" or "cart=Ford; name=bob"
+	 * @return the decoded name/value pairs, first value winning; pairs
+	 *         without a value are left out
+	 */
+	static Map<String, String> parseQuery(String query) {
+		Map<String, String> values = new LinkedHashMap<>();
+		if (query == null) {
+			return values;
+		}
+		for (String pair : query.split("[&;]")) {
+			int eq = pair.indexOf('=');
+			if (eq <= 0 || eq == pair.length() - 1) {
+				continue;
+			}
+			values.putIfAbsent(decode(pair.substring(0, eq)).trim(), decode(pair.substring(eq + 1)));
+		}
+		return values;
+	}
+
+	/**
+	 * @return the whole body as text
+	 */
+	static String readBody(InputStream body) throws IOException {
+		return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+	}
+
+	private static String decode(String text) {
+		try {
+			return URLDecoder.decode(text, "UTF-8");
+		} catch (IllegalArgumentException | IOException e) {
+			return text; // leave malformed escapes alone
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats and parses HTTP dates (IMF-fixdate, "Sun, 06 Nov 1994 08:49:37
+ * GMT") for every connection at once. The Date and Expires header values
+ * only change once a second, so they are encoded once per second and shared;
+ * Last-Modified values are remembered per modification time, which is per
+ * file for all practical purposes. Parsing works directly on the request
+ * bytes and only falls back to java.time's RFC 1123 parser for dates that
+ * are not in the fixed format.
+ */
+final class HttpDates {
+
+	private static final long YEAR = 365 * 24 * 60 * 60 * 1000L; // how far ahead Expires lies
+	private static final int MAX_MEMO = 4096; // Last-Modified values we remember
+
+	private static final byte[][] DAYS = ascii("Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"); // from 1970-01-01
+	private static final byte[][] MONTHS = ascii("Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+			"Nov", "Dec");
+
+	private static volatile Stamp current = new Stamp(System.currentTimeMillis() / 1000);
+	private static final ConcurrentHashMap<Long, byte[]> lastModified = new ConcurrentHashMap<>();
+
+	private HttpDates() {
+	}
+
+	/**
+	 * The header values belonging to one second
+	 */
+	private static class Stamp {
+		private final long second;
+		private final byte[] date;
+		private final byte[] expires;
+
+		Stamp(long second) {
+			this.second = second;
+			this.date = format(second * 1000);
+			this.expires = format(second * 1000 + YEAR);
+		}
+	}
+
+	/**
+	 * @return the current time as an encoded HTTP date
+	 */
+	static byte[] now() {
+		return stamp().date;
+	}
+
+	/**
+	 * @return the encoded HTTP date one year from now
+	 */
+	static byte[] expires() {
+		return stamp().expires;
+	}
+
+	private static Stamp stamp() {
+		long second = System.currentTimeMillis() / 1000;
+		Stamp stamp = current;
+		if (stamp.second != second) { // racing threads compute the same value
+			stamp = new Stamp(second);
+			current = stamp;
+		}
+		return stamp;
+	}
+
+	/**
+	 * @param millis-
+	 *            a file's modification time
+	 * @return it as an encoded HTTP date
+	 */
+	static byte[] lastModified(long millis) {
+		Long key = Math.floorDiv(millis, 1000);
+		byte[] text = lastModified.get(key);
+		if (text == null) {
+			if (lastModified.size() >= MAX_MEMO) {
+				lastModified.clear();
+			}
+			text = format(millis);
+			lastModified.put(key, text);
+		}
+		return text;
+	}
+
+	/**
+	 * @param millis-
+	 *            milliseconds since the epoch
+	 * @return the time as IMF-fixdate bytes, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	static byte[] format(long millis) {
+		long seconds = Math.floorDiv(millis, 1000);
+		long days = Math.floorDiv(seconds, 86400);
+		int secondOfDay = Math.floorMod(seconds, 86400);
+		// civil date from days since the epoch (Hinnant's algorithm)
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		byte[] out = new byte[29];
+		System.arraycopy(DAYS[Math.floorMod(days, 7)], 0, out, 0, 3);
+		out[3] = ',';
+		out[4] = ' ';
+		digits(out, 5, day, 2);
+		out[7] = ' ';
+		System.arraycopy(MONTHS[month - 1], 0, out, 8, 3);
+		out[11] = ' ';
+		digits(out, 12, year, 4);
+		out[16] = ' ';
+		digits(out, 17, secondOfDay / 3600, 2);
+		out[19] = ':';
+		digits(out, 20, secondOfDay / 60 % 60, 2);
+		out[22] = ':';
+		digits(out, 23, secondOfDay % 60, 2);
+		out[25] = ' ';
+		out[26] = 'G';
+		out[27] = 'M';
+		out[28] = 'T';
+		return out;
+	}
+
+	/**
+	 * @param buf-
+	 *            bytes holding a header value
+	 * @param from-
+	 *            index of its first byte
+	 * @param to-
+	 *            index after its last byte
+	 * @return the date in milliseconds since the epoch, or -1 if it is not a
+	 *         valid HTTP date
+	 */
+	static long parse(byte[] buf, int from, int to) {
+		if (to - from == 29 && buf[from + 3] == ',' && buf[from + 4] == ' ' && buf[from + 7] == ' '
+				&& buf[from + 11] == ' ' && buf[from + 16] == ' ' && buf[from + 19] == ':' && buf[from + 22] == ':'
+				&& buf[from + 25] == ' ' && buf[from + 26] == 'G' && buf[from + 27] == 'M' && buf[from + 28] == 'T') {
+			int day = number(buf, from + 5, 2);
+			int month = month(buf, from + 8);
+			int year = number(buf, from + 12, 4);
+			int hour = number(buf, from + 17, 2);
+			int minute = number(buf, from + 20, 2);
+			int second = number(buf, from + 23, 2);
+			if (day >= 1 && day <= 31 && month >= 1 && year >= 0 && hour >= 0 && hour < 24 && minute >= 0
+					&& minute < 60 && second >= 0 && second < 61) {
+				return (daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second) * 1000;
+			}
+			return -1;
+		}
+		// not the fixed format, let java.time deal with it
+		try {
+			String value = new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+			return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return days since 1970-01-01 of the given proleptic Gregorian date
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+
+	/**
+	 * @return 1 to 12 for the month abbreviation at index at, or -1
+	 */
+	private static int month(byte[] buf, int at) {
+		for (int i = 0; i < MONTHS.length; i++) {
+			byte[] name = MONTHS[i];
+			if (buf[at] == name[0] && buf[at + 1] == name[1] && buf[at + 2] == name[2]) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the decimal number of count digits at index at, or -1
+	 */
+	private static int number(byte[] buf, int at, int count) {
+		int value = 0;
+		for (int i = at; i < at + count; i++) {
+			if (buf[i] < '0' || buf[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (buf[i] - '0');
+		}
+		return value;
+	}
+
+	private static void digits(byte[] out, int at, int value, int count) {
+		for (int i = at + count - 1; i >= at; i--) {
+			out[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	private static byte[][] ascii(String... values) {
+		byte[][] out = new byte[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			out[i] = values[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return out;
+	}
+}
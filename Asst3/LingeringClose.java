@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closes connections gracefully without holding a worker. Closing a socket
+ * that still has unread request bytes makes the kernel send a reset, which
+ * can destroy the response before the client has read it, so a worker used
+ * to sleep for a quarter second before every close. Instead the worker
+ * shuts down its side, which sends the FIN after the response, and hands
+ * the socket over. One thread then reads and discards whatever the client
+ * still sends and closes the socket once the client closes its side or the
+ * grace period (-Dserver.lingerMillis, 250ms) runs out. Every connection
+ * gets the same grace period, so deadlines expire in the order connections
+ * arrive and a plain FIFO serves as the timer.
+ */
+class LingeringClose implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(LingeringClose.class.getName());
+
+	private final long grace;
+	private final int limit;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+	private final ArrayDeque<Lingerer> deadlines = new ArrayDeque<>();
+	private final ByteBuffer discard = ByteBuffer.allocateDirect(16 * 1024);
+	private final AtomicInteger lingering = new AtomicInteger();
+
+	final LongAdder lingered = new LongAdder();
+	final LongAdder closedEarly = new LongAdder(); // the client closed before the grace period ran out
+	final LongAdder overflowed = new LongAdder(); // too many lingering, closed at once
+
+	/**
+	 * A socket waiting to be closed
+	 */
+	private static class Lingerer {
+		private final SocketChannel channel;
+		private final long deadline;
+
+		Lingerer(SocketChannel channel, long deadline) {
+			this.channel = channel;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * @param graceMillis-
+	 *            longest a socket is kept open after the response
+	 * @param limit-
+	 *            most sockets lingering at once, beyond which they are
+	 *            closed straight away
+	 */
+	LingeringClose(long graceMillis, int limit) throws IOException {
+		this.grace = TimeUnit.MILLISECONDS.toNanos(graceMillis);
+		this.limit = limit;
+		this.selector = Selector.open();
+		Thread thread = new Thread(this, "linger");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the closer configured from the server.* system properties
+	 */
+	static LingeringClose fromProperties() {
+		try {
+			return new LingeringClose(Long.getLong("server.lingerMillis", 250),
+					Integer.getInteger("server.lingerMax", 4096));
+		} catch (IOException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * @param socket-
+	 *            a connection whose response has been flushed
+	 * Finish the connection in the background. Never blocks; the caller
+	 * must not touch the socket or its streams afterwards.
+	 */
+	void close(Socket socket) {
+		SocketChannel channel = socket.getChannel();
+		if (channel == null || grace <= 0) {
+			closeQuietly(socket);
+			return;
+		}
+		if (lingering.incrementAndGet() > limit) {
+			lingering.decrementAndGet();
+			overflowed.increment();
+			closeQuietly(socket);
+			return;
+		}
+		try {
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			lingering.decrementAndGet();
+			closeQuietly(socket); // the client is already gone
+			return;
+		}
+		lingered.increment();
+		added.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return sockets waiting to be closed
+	 */
+	int lingering() {
+		return lingering.get();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Lingerer next = deadlines.peek();
+				long wait = next == null ? 0 : next.deadline - System.nanoTime();
+				if (next == null) {
+					selector.select();
+				} else if (wait > 0) {
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+				} else {
+					selector.selectNow();
+				}
+				register();
+				drain();
+				expire(System.nanoTime());
+			} catch (Exception e) { // keep closing whatever else is queued
+				LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+			}
+		}
+	}
+
+	private void register() {
+		SocketChannel channel;
+		while ((channel = added.poll()) != null) {
+			Lingerer lingerer = new Lingerer(channel, System.nanoTime() + grace);
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, lingerer);
+				deadlines.add(lingerer);
+			} catch (ClosedChannelException e) {
+				lingering.decrementAndGet();
+			} catch (IOException e) {
+				finish(lingerer);
+			}
+		}
+	}
+
+	/**
+	 * Discard what readable clients sent; those that closed are done
+	 */
+	private void drain() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Lingerer lingerer = (Lingerer) key.attachment();
+			try {
+				int n;
+				do {
+					discard.clear();
+					n = lingerer.channel.read(discard);
+				} while (n > 0);
+				if (n < 0) {
+					closedEarly.increment();
+					finish(lingerer);
+				}
+			} catch (IOException e) {
+				finish(lingerer);
+			}
+		}
+	}
+
+	/**
+	 * Close every socket whose grace period is over
+	 */
+	private void expire(long now) {
+		Lingerer head;
+		while ((head = deadlines.peek()) != null && now - head.deadline >= 0) {
+			deadlines.poll();
+			finish(head);
+		}
+	}
+
+	/**
+	 * Close the socket if that has not happened yet. It stays in the
+	 * deadline queue until its turn comes, where closing again does nothing.
+	 */
+	private void finish(Lingerer lingerer) {
+		if (lingerer.channel.isOpen()) {
+			lingering.decrementAndGet();
+			try {
+				lingerer.channel.close();
+			} catch (IOException e) {
+				// nothing more to do for it
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing more to do for it
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Read-only memory mappings of large static files, kept per canonical path
+ * so a download is served straight out of the page cache without copying
+ * the file into the Java heap. A mapping is replaced as soon as the file's
+ * lastModified or length changes; only the most recently used maxFiles
+ * mappings are kept, the rest are left for the garbage collector to unmap.
+ *
+ * Hits take no lock, as in StaticCache: lookups go to a concurrent map and
+ * the access is noted in a ring buffer per stripe of threads, replayed into
+ * the LRU order by whoever fills half a ring while the lock is free.
+ *
+ * A file truncated while it is mapped makes reading past its new end fault;
+ * the JVM reports that as an InternalError, which whoever writes the
+ * mapping out has to catch.
+ */
+class MappedFiles {
+
+	private static final int READ_BUFFER = 32; // accesses noted per stripe between drains, a power of two
+
+	private final int maxFiles;
+	private final ConcurrentHashMap<String, Mapping> mappings = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	// guarded by the lock
+	private final LinkedHashMap<String, Mapping> lru = new LinkedHashMap<>(16, 0.75f, true);
+	private final ReadBuffer[] reads;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder maps = new LongAdder();
+
+	/**
+	 * One mapped file and the version of it that was mapped
+	 */
+	private static class Mapping {
+		private final MappedByteBuffer data;
+		private final long lastModified;
+		private final long length;
+
+		Mapping(MappedByteBuffer data, long lastModified, long length) {
+			this.data = data;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Keys looked up by one stripe of threads, waiting to be drained
+	 */
+	private static class ReadBuffer {
+		private final AtomicReferenceArray<String> keys = new AtomicReferenceArray<>(READ_BUFFER);
+		private final AtomicLong written = new AtomicLong();
+		private volatile long drained = 0; // written under the lock, read as a hint
+	}
+
+	MappedFiles(int maxFiles) {
+		this.maxFiles = maxFiles;
+		int stripes = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())));
+		this.reads = new ReadBuffer[stripes];
+		for (int i = 0; i < stripes; i++) {
+			reads[i] = new ReadBuffer();
+		}
+	}
+
+	/**
+	 * @param key-
+	 *            canonical path of the file
+	 * @param file-
+	 *            the file to serve
+	 * @return a private view of the mapped file, or null if the file is too
+	 *         big to map in one piece
+	 */
+	ByteBuffer get(String key, File file) throws IOException {
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Mapping mapping = mappings.get(key);
+		if (mapping != null && mapping.lastModified == lastModified && mapping.length == length) {
+			record(key);
+			hits.increment();
+			return mapping.data.duplicate();
+		}
+		if (length > Integer.MAX_VALUE) {
+			return null;
+		}
+		MappedByteBuffer data;
+		// the mapping stays valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() != length) {
+				return null; // changing under us; streamed instead
+			}
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		maps.increment();
+		mapping = new Mapping(data, lastModified, length);
+		lock.lock();
+		try {
+			drain();
+			lru.put(key, mapping);
+			mappings.put(key, mapping);
+			Iterator<Map.Entry<String, Mapping>> eldest = lru.entrySet().iterator();
+			while (lru.size() > maxFiles) {
+				Map.Entry<String, Mapping> old = eldest.next();
+				eldest.remove();
+				mappings.remove(old.getKey(), old.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+		return data.duplicate();
+	}
+
+	/**
+	 * Note an access for the LRU order, draining the buffers once this one
+	 * is half full and nobody else is at it
+	 */
+	private void record(String key) {
+		ReadBuffer buffer = reads[(int) Thread.currentThread().getId() & (reads.length - 1)];
+		long n = buffer.written.getAndIncrement();
+		buffer.keys.lazySet((int) n & (READ_BUFFER - 1), key);
+		if (n + 1 - buffer.drained >= READ_BUFFER / 2 && lock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Replay the noted accesses. Called with the lock held.
+	 */
+	private void drain() {
+		for (ReadBuffer buffer : reads) {
+			long written = buffer.written.get();
+			for (int i = 0; i < READ_BUFFER; i++) {
+				String key = buffer.keys.getAndSet(i, null);
+				if (key != null) {
+					lru.get(key); // moves it to the most recently used end
+				}
+			}
+			buffer.drained = written;
+		}
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long maps() {
+		return maps.sum();
+	}
+}
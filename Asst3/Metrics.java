@@ -0,0 +1,321 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters behind /server-status. Every response is recorded once, after it
+ * is written, into LongAdders and per-route latency histograms, so threads
+ * answering requests never wait on each other to be counted; the sums are
+ * only added up when the status page is asked for.
+ */
+final class Metrics {
+
+	static final int STATIC = 0;
+	static final int CGI_GET = 1;
+	static final int CGI_POST = 2;
+	static final int OTHER = 3;
+	private static final String[] ROUTES = { "static", "cgi_get", "cgi_post", "other" };
+	private static final String[] METHODS = { "GET", "POST", "HEAD", "other" };
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+	private static final String[] QUANTILE_NAMES = { "p50", "p99", "p999" };
+
+	private final LongAdder[][] responses = new LongAdder[METHODS.length][600]; // by method and status
+	private final Rate[] rates = new Rate[METHODS.length];
+	private final Histogram[] latency = new Histogram[ROUTES.length];
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder connections = new LongAdder(); // held by a thread right now
+	private final long started = System.nanoTime();
+
+	Metrics() {
+		for (int m = 0; m < METHODS.length; m++) {
+			for (int s = 0; s < 600; s++) {
+				responses[m][s] = new LongAdder();
+			}
+			rates[m] = new Rate();
+		}
+		for (int r = 0; r < ROUTES.length; r++) {
+			latency[r] = new Histogram();
+		}
+	}
+
+	/**
+	 * @param method-
+	 *            the request method, null if the request could not be parsed
+	 * @param status-
+	 *            the status sent
+	 * @param bytes-
+	 *            body bytes sent
+	 * @param route-
+	 *            STATIC, CGI_GET, CGI_POST or OTHER
+	 * @param nanos-
+	 *            time from taking up the request to writing the response
+	 */
+	void record(String method, int status, long bytes, int route, long nanos) {
+		int m = method(method);
+		if (status >= 100 && status < 600) {
+			responses[m][status].increment();
+		}
+		rates[m].mark();
+		bytesSent.add(bytes);
+		latency[route].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	void connectionOpened() {
+		connections.increment();
+	}
+
+	void connectionClosed() {
+		connections.decrement();
+	}
+
+	private static int method(String method) {
+		if (method == null) {
+			return METHODS.length - 1;
+		}
+		switch (method) {
+		case "GET":
+			return 0;
+		case "POST":
+			return 1;
+		case "HEAD":
+			return 2;
+		default:
+			return METHODS.length - 1;
+		}
+	}
+
+	/**
+	 * @param gauges-
+	 *            other figures to report as they are, e.g. queue length or
+	 *            cache hits; names ending in _total are counters
+	 * @return the status as a JSON object
+	 */
+	String json(Map<String, Long> gauges) {
+		StringBuilder out = new StringBuilder(4096);
+		out.append("{\n  \"uptime_seconds\": ").append(uptimeSeconds());
+		out.append(",\n  \"connections_active\": ").append(connections.sum());
+		out.append(",\n  \"bytes_sent_total\": ").append(bytesSent.sum());
+		for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+			out.append(",\n  \"").append(gauge.getKey()).append("\": ").append(gauge.getValue());
+		}
+		out.append(",\n  \"requests_per_second\": {");
+		for (int m = 0; m < METHODS.length; m++) {
+			out.append(m == 0 ? "" : ",").append(" \"").append(METHODS[m]).append("\": ")
+					.append(format(rates[m].perSecond()));
+		}
+		out.append(" },\n  \"responses_total\": {");
+		String comma = "";
+		for (int m = 0; m < METHODS.length; m++) {
+			for (int s = 100; s < 600; s++) {
+				long count = responses[m][s].sum();
+				if (count > 0) {
+					out.append(comma).append("\n    \"").append(METHODS[m]).append(' ').append(s).append("\": ")
+							.append(count);
+					comma = ",";
+				}
+			}
+		}
+		out.append("\n  },\n  \"latency_ms\": {");
+		for (int r = 0; r < ROUTES.length; r++) {
+			long[] counts = latency[r].snapshot();
+			out.append(r == 0 ? "" : ",").append("\n    \"").append(ROUTES[r]).append("\": { \"count\": ")
+					.append(Histogram.total(counts));
+			for (int q = 0; q < QUANTILES.length; q++) {
+				out.append(", \"").append(QUANTILE_NAMES[q]).append("\": ")
+						.append(format(Histogram.quantile(counts, QUANTILES[q]) / 1000.0));
+			}
+			out.append(", \"max\": ").append(format(Histogram.max(counts) / 1000.0)).append(" }");
+		}
+		return out.append("\n  }\n}\n").toString();
+	}
+
+	/**
+	 * @return the status in the Prometheus text exposition format
+	 */
+	String prometheus(Map<String, Long> gauges) {
+		StringBuilder out = new StringBuilder(4096);
+		out.append("# TYPE server_uptime_seconds gauge\nserver_uptime_seconds ").append(uptimeSeconds()).append('\n');
+		out.append("# TYPE server_connections_active gauge\nserver_connections_active ").append(connections.sum())
+				.append('\n');
+		out.append("# TYPE server_bytes_sent_total counter\nserver_bytes_sent_total ").append(bytesSent.sum())
+				.append('\n');
+		for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+			String name = "server_" + gauge.getKey();
+			out.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+			out.append(name).append(' ').append(gauge.getValue()).append('\n');
+		}
+		out.append("# TYPE server_requests_total counter\n");
+		for (int m = 0; m < METHODS.length; m++) {
+			for (int s = 100; s < 600; s++) {
+				long count = responses[m][s].sum();
+				if (count > 0) {
+					out.append("server_requests_total{method=\"").append(METHODS[m]).append("\",status=\"")
+							.append(s).append("\"} ").append(count).append('\n');
+				}
+			}
+		}
+		out.append("# TYPE server_request_duration_seconds summary\n");
+		for (int r = 0; r < ROUTES.length; r++) {
+			long[] counts = latency[r].snapshot();
+			String labels = "{route=\"" + ROUTES[r] + "\"";
+			for (double q : QUANTILES) {
+				out.append("server_request_duration_seconds").append(labels).append(",quantile=\"").append(q)
+						.append("\"} ").append(seconds(Histogram.quantile(counts, q))).append('\n');
+			}
+			out.append("server_request_duration_seconds_sum").append(labels).append("} ")
+					.append(seconds(latency[r].sum())).append('\n');
+			out.append("server_request_duration_seconds_count").append(labels).append("} ")
+					.append(Histogram.total(counts)).append('\n');
+		}
+		return out.toString();
+	}
+
+	private long uptimeSeconds() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String seconds(long micros) {
+		return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+	}
+
+	/**
+	 * Requests per second as a one minute exponentially weighted moving
+	 * average, brought up to date every five seconds by whichever thread
+	 * notices the tick is due
+	 */
+	private static final class Rate {
+		private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+		private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+		private final LongAdder uncounted = new LongAdder();
+		private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+		private volatile double rate = -1; // per nanosecond, -1 until the first tick
+
+		void mark() {
+			tickIfDue();
+			uncounted.increment();
+		}
+
+		double perSecond() {
+			tickIfDue();
+			return Math.max(rate, 0) * TimeUnit.SECONDS.toNanos(1);
+		}
+
+		private void tickIfDue() {
+			long last = lastTick.get();
+			long ticks = (System.nanoTime() - last) / TICK;
+			if (ticks > 0 && lastTick.compareAndSet(last, last + ticks * TICK)) {
+				for (long i = 0; i < ticks; i++) {
+					double instant = (double) uncounted.sumThenReset() / TICK;
+					rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Latencies in microseconds in the log-linear layout HdrHistogram uses:
+	 * exact below 128us, then 64 buckets for each power of two, so any value
+	 * is reported within 1.6% of what was recorded. Up to about 38 hours
+	 * fits in 2048 buckets; anything longer lands in the last one.
+	 */
+	static final class Histogram {
+		private static final int SUB_BITS = 7;
+		private static final int SUB = 1 << SUB_BITS; // exact below this
+		private static final int HALF = SUB / 2; // buckets per power of two above it
+		static final int BUCKETS = 2048;
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		void record(long micros) {
+			long value = Math.max(0, micros);
+			counts[Math.min(index(value), BUCKETS - 1)].increment();
+			sum.add(value);
+		}
+
+		static int index(long value) {
+			if (value < SUB) {
+				return (int) value;
+			}
+			int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+			return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+		}
+
+		/**
+		 * @return the largest value that falls in the bucket
+		 */
+		static long highest(int index) {
+			if (index < SUB) {
+				return index;
+			}
+			int shift = (index - SUB) / HALF + 1;
+			long mantissa = (index - SUB) % HALF + HALF;
+			return ((mantissa + 1) << shift) - 1;
+		}
+
+		long[] snapshot() {
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts[i].sum();
+			}
+			return snapshot;
+		}
+
+		/**
+		 * @return total of the values recorded, in microseconds
+		 */
+		long sum() {
+			return sum.sum();
+		}
+
+		static long total(long[] snapshot) {
+			long total = 0;
+			for (long count : snapshot) {
+				total += count;
+			}
+			return total;
+		}
+
+		/**
+		 * @return the value at or below which the given fraction of the
+		 *         recorded values lie, 0 if nothing was recorded
+		 */
+		static long quantile(long[] snapshot, double q) {
+			long total = total(snapshot);
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++) {
+				seen += snapshot[i];
+				if (seen >= rank) {
+					return highest(i);
+				}
+			}
+			return highest(snapshot.length - 1);
+		}
+
+		static long max(long[] snapshot) {
+			for (int i = snapshot.length - 1; i >= 0; i--) {
+				if (snapshot[i] > 0) {
+					return highest(i);
+				}
+			}
+			return 0;
+		}
+	}
+}
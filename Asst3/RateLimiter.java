@@ -0,0 +1,198 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets per client address, so one client cannot take every worker
+ * and push everybody else into the 503 path. Each bucket refills at a
+ * steady rate up to a burst, and is kept as a single long in the form of
+ * the generic cell rate algorithm: the time at which it will be full again.
+ * Taking a token moves that time forward by one refill interval with a
+ * compareAndSet, refused once it would lie more than a burst ahead, so
+ * clients never wait on a lock and different clients never touch the same
+ * memory. A bucket whose time has passed is full and holds nothing worth
+ * remembering, which is what lets the map of buckets be bounded and
+ * expired without losing a limit: once it reaches -Dserver.rateLimitClients
+ * full buckets are swept out, and should every one still be in use, new
+ * clients share a single overflow bucket until room is made.
+ *
+ * Both limits are off unless a rate is given, since a fair share for one
+ * address depends on who is behind it: a proxy or NAT puts many users on
+ * one.
+ */
+class RateLimiter {
+
+	private static final int SWEEP_MILLIS = 10000; // how often full buckets are dropped
+
+	private final String name;
+	private final double rate; // tokens a second
+	private final int burst;
+	private final long interval; // nanoseconds per token
+	private final long window; // how far ahead of now the full time may lie
+	private final int maxClients;
+	private final boolean limitLoopback;
+	private final ConcurrentHashMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final AtomicLong overflow = new AtomicLong(System.nanoTime()); // shared once the map is full
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	final LongAdder allowed = new LongAdder();
+	final LongAdder limited = new LongAdder();
+	final LongAdder overflowed = new LongAdder(); // clients put in the shared bucket
+
+	/**
+	 * @param name-
+	 *            what is limited, for the metrics
+	 * @param rate-
+	 *            tokens a client gets a second, 0 or less for no limit
+	 * @param burst-
+	 *            tokens a client may spend at once after being quiet
+	 * @param maxClients-
+	 *            buckets kept before clients share the overflow bucket
+	 * @param limitLoopback-
+	 *            whether clients on this machine are limited too
+	 */
+	RateLimiter(String name, double rate, int burst, int maxClients, boolean limitLoopback) {
+		this.name = name;
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+		this.window = interval * this.burst;
+		this.maxClients = maxClients;
+		this.limitLoopback = limitLoopback;
+		if (enabled()) {
+			HTTP1ServerASP.HTTPThread.TIMERS.schedule(this::sweepPeriodically, SWEEP_MILLIS);
+		}
+	}
+
+	/**
+	 * @return the limit on new connections a second from one address,
+	 *         -Dserver.connectionRate (none) with bursts of
+	 *         -Dserver.connectionBurst (twice the rate)
+	 */
+	static RateLimiter connections() {
+		return fromProperties("connections", "server.connectionRate", "server.connectionBurst");
+	}
+
+	/**
+	 * @return the limit on requests a second from one address,
+	 *         -Dserver.requestRate (none) with bursts of -Dserver.requestBurst
+	 *         (twice the rate)
+	 */
+	static RateLimiter requests() {
+		return fromProperties("requests", "server.requestRate", "server.requestBurst");
+	}
+
+	private static RateLimiter fromProperties(String name, String rateProperty, String burstProperty) {
+		double rate = Double.parseDouble(System.getProperty(rateProperty, "0"));
+		return new RateLimiter(name, rate, Integer.getInteger(burstProperty, (int) Math.ceil(rate * 2)),
+				Integer.getInteger("server.rateLimitClients", 65536), Boolean.getBoolean("server.rateLimitLoopback"));
+	}
+
+	boolean enabled() {
+		return interval > 0;
+	}
+
+	/**
+	 * Take a token for the client if it has one
+	 *
+	 * @param client-
+	 *            the client's address
+	 * @return 0 if the client may go ahead, otherwise nanoseconds until it
+	 *         would be let through
+	 */
+	long acquire(InetAddress client) {
+		if (!enabled() || client == null || (!limitLoopback && client.isLoopbackAddress())) {
+			return 0;
+		}
+		AtomicLong bucket = bucket(client);
+		long now = System.nanoTime();
+		while (true) {
+			long full = bucket.get();
+			long next = Math.max(full - now, 0) + now + interval; // a full bucket starts from now
+			long ahead = next - now - window;
+			if (ahead > 0) {
+				limited.increment();
+				return ahead;
+			}
+			if (bucket.compareAndSet(full, next)) {
+				allowed.increment();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * @return a wait from acquire() in whole seconds for Retry-After
+	 */
+	static int retryAfter(long nanos) {
+		return (int) Math.max(1, (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private AtomicLong bucket(InetAddress client) {
+		AtomicLong bucket = buckets.get(client);
+		if (bucket != null) {
+			return bucket;
+		}
+		if (buckets.size() >= maxClients) {
+			sweep();
+			if (buckets.size() >= maxClients) {
+				overflowed.increment();
+				return overflow;
+			}
+		}
+		return buckets.computeIfAbsent(client, c -> new AtomicLong(System.nanoTime()));
+	}
+
+	/**
+	 * @return clients with a bucket
+	 */
+	int clients() {
+		return buckets.size();
+	}
+
+	/**
+	 * Put this limiter's settings and counters into the status page's figures
+	 */
+	void report(Map<String, Long> gauges) {
+		String prefix = "rate_limit_" + name;
+		gauges.put(prefix + "_per_second", (long) rate);
+		gauges.put(prefix + "_burst", (long) burst);
+		gauges.put(prefix + "_clients", (long) clients());
+		gauges.put(prefix + "_allowed_total", allowed.sum());
+		gauges.put(prefix + "_limited_total", limited.sum());
+		gauges.put(prefix + "_overflow_total", overflowed.sum());
+	}
+
+	private void sweepPeriodically() {
+		HTTP1ServerASP.HTTPThread.TIMERS.schedule(this::sweepPeriodically, SWEEP_MILLIS);
+		sweep();
+	}
+
+	/**
+	 * Drop every bucket that has filled up again. One that is being taken
+	 * from while it goes is dropped only if it is still full, so at worst a
+	 * client gets one token more than its burst.
+	 */
+	private void sweep() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return; // someone else is at it
+		}
+		try {
+			long now = System.nanoTime();
+			Iterator<Map.Entry<InetAddress, AtomicLong>> entries = buckets.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<InetAddress, AtomicLong> entry = entries.next();
+				if (entry.getValue().get() - now <= 0) {
+					buckets.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serializes responses for one connection. Status lines and headers are
+ * appended as bytes into a buffer that is reused for every response, so
+ * only the variable parts of a header (dates, lengths, types) are encoded
+ * per request and nothing is sent until the response is complete or the
+ * buffer fills up. A body that does not fit in the buffer goes out together
+ * with the buffered header in one gathering write when the socket has a
+ * channel; small bodies are simply copied in so that a whole response, or a
+ * batch of pipelined ones, leaves in a single write.
+ */
+class ResponseWriter {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final SocketChannel channel; // null for a Socket created without one
+	private final Socket socket;
+	private OutputStream stream;
+	private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer[] pair = new ByteBuffer[2];
+
+	ResponseWriter(Socket socket) {
+		this.socket = socket;
+		this.channel = socket.getChannel();
+	}
+
+	/**
+	 * Append pre-encoded bytes
+	 */
+	void put(byte[] bytes) throws IOException {
+		if (bytes.length > buf.remaining()) {
+			flush();
+			if (bytes.length > buf.capacity()) {
+				write(ByteBuffer.wrap(bytes));
+				return;
+			}
+		}
+		buf.put(bytes);
+	}
+
+	/**
+	 * Append part of a byte array
+	 */
+	void put(byte[] bytes, int off, int len) throws IOException {
+		if (len > buf.remaining()) {
+			flush();
+			if (len > buf.capacity()) {
+				write(ByteBuffer.wrap(bytes, off, len));
+				return;
+			}
+		}
+		buf.put(bytes, off, len);
+	}
+
+	/**
+	 * Append a header value without encoding it to a byte[] first. A char
+	 * up to U+00FF is one byte, the ISO-8859-1 that CGI headers are read
+	 * as; anything beyond that goes out in UTF-8 rather than losing its
+	 * high bits.
+	 */
+	void putText(CharSequence value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			if (buf.remaining() < 4) {
+				flush();
+			}
+			char c = value.charAt(i);
+			if (c <= 0xff) {
+				buf.put((byte) c);
+			} else if (c < 0x800) {
+				buf.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf.put((byte) (0xf0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3f))
+						.put((byte) (0x80 | cp >> 6 & 0x3f)).put((byte) (0x80 | cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buf.put((byte) '?'); // half a pair has no encoding
+			} else {
+				buf.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	/**
+	 * Append a non-negative number in decimal
+	 */
+	void putLong(long value) throws IOException {
+		if (buf.remaining() < 20) {
+			flush();
+		}
+		int start = buf.position();
+		do {
+			buf.put((byte) ('0' + value % 10));
+			value /= 10;
+		} while (value > 0);
+		// digits went in backwards
+		for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+			byte b = buf.get(i);
+			buf.put(i, buf.get(j));
+			buf.put(j, b);
+		}
+	}
+
+	/**
+	 * Append a non-negative number in hexadecimal, as chunk sizes are
+	 */
+	void putHex(long value) throws IOException {
+		if (buf.remaining() < 16) {
+			flush();
+		}
+		int digits = Math.max(1, (67 - Long.numberOfLeadingZeros(value)) / 4);
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			buf.put((byte) Character.forDigit((int) (value >>> shift) & 0xf, 16));
+		}
+	}
+
+	/**
+	 * Send a body after what has been buffered so far. Small bodies are
+	 * copied behind the header; larger ones are written together with it in
+	 * one gathering write.
+	 */
+	void body(ByteBuffer body) throws IOException {
+		if (body.remaining() <= buf.remaining()) {
+			buf.put(body);
+			return;
+		}
+		if (channel != null) {
+			buf.flip();
+			pair[0] = buf;
+			pair[1] = body;
+			while (body.hasRemaining()) {
+				channel.write(pair);
+			}
+			pair[1] = null;
+			buf.clear();
+			return;
+		}
+		flush();
+		if (body.hasArray()) {
+			stream().write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+			body.position(body.limit());
+			return;
+		}
+		// off-heap body on a plain socket, copy it out through our own buffer
+		while (body.hasRemaining()) {
+			int count = Math.min(body.remaining(), buf.capacity());
+			body.get(buf.array(), 0, count);
+			stream().write(buf.array(), 0, count);
+		}
+	}
+
+	/**
+	 * Send what is buffered, then length bytes of the file with
+	 * FileChannel.transferTo (sendfile when the socket has a channel)
+	 */
+	void transfer(FileChannel file, long length) throws IOException {
+		flush();
+		WritableByteChannel target = channel;
+		if (target == null) {
+			target = Channels.newChannel(stream());
+		}
+		long sent = 0;
+		while (sent < length) {
+			long count = file.transferTo(sent, length - sent, target);
+			if (count <= 0) {
+				throw new EOFException("File shrank while being sent");
+			}
+			sent += count;
+		}
+	}
+
+	/**
+	 * Put everything buffered on the wire
+	 */
+	void flush() throws IOException {
+		if (buf.position() == 0) {
+			return;
+		}
+		buf.flip();
+		write(buf);
+		buf.clear();
+	}
+
+	private void write(ByteBuffer data) throws IOException {
+		if (channel != null) {
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+		} else {
+			stream().write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.limit());
+		}
+	}
+
+	private OutputStream stream() throws IOException {
+		if (stream == null) {
+			stream = socket.getOutputStream();
+		}
+		return stream;
+	}
+}
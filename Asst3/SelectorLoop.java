@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking front end for HTTP1ServerASP. A single selector thread accepts
+ * clients and collects each request header block into a per-connection
+ * buffer as bytes arrive. Only once a complete header block is buffered is
+ * the connection switched back to blocking mode and handed to an HTTPThread
+ * on the worker pool, so idle and slow clients cost a buffer instead of a
+ * thread. Persistent connections come back here between requests. The
+ * header deadline and the keep-alive wait run on HTTPThread's timing
+ * wheel, which hands expired connections back to this thread to answer.
+ * In pool mode a loop without a server channel only waits on idle
+ * persistent connections, so they do not hold a worker between requests.
+ */
+class SelectorLoop implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(SelectorLoop.class.getName());
+	private static final int READ_TIMEOUT = 3000; // same as the blocking SO_TIMEOUT
+	private static final int MAX_HEADER = 64 * 1024; // largest header block we will buffer
+
+	private ServerSocketChannel server;
+	private Admission workers;
+	private int port;
+	private Selector selector;
+	private Queue<PendingRequest> resumed = new ConcurrentLinkedQueue<>(); // idle keep-alive connections
+	private Queue<PendingRequest> expired = new ConcurrentLinkedQueue<>(); // past a deadline on the wheel
+
+	SelectorLoop(ServerSocketChannel server, int port, Admission workers) {
+		this.server = server;
+		this.port = port;
+		this.workers = workers;
+	}
+
+	/**
+	 * @return a loop, already running on a thread of its own, that accepts
+	 *         no clients but takes idle persistent connections from the
+	 *         workers and hands them back once their next request is in
+	 */
+	static SelectorLoop idleConnections(int port, Admission workers) throws IOException {
+		SelectorLoop loop = new SelectorLoop(null, port, workers);
+		loop.selector = Selector.open(); // before any worker can resume() a connection
+		Thread thread = new Thread(loop, "keep-alive");
+		thread.setDaemon(true);
+		thread.start();
+		return loop;
+	}
+
+	/**
+	 * State kept for a connection while its header block is being read
+	 */
+	private static class PendingRequest {
+		private SocketChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(1024);
+		private boolean idle; // waiting between requests, nothing read yet
+		private int served; // requests already answered on this connection
+		private TimingWheel.Timeout deadline; // the header deadline, or the keep-alive one while idle
+
+		PendingRequest(SocketChannel channel, boolean idle, int served) {
+			this.channel = channel;
+			this.idle = idle;
+			this.served = served;
+		}
+	}
+
+	/**
+	 * Run the selector until the server channel is closed, or for good
+	 * without one
+	 */
+	@Override
+	public void run() {
+		if (server != null) {
+			try {
+				selector = Selector.open();
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+				return;
+			}
+		}
+		List<PendingRequest> ready = new ArrayList<>();
+		while (server == null || server.isOpen()) {
+			try {
+				selector.select();
+				register();
+				expire();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						PendingRequest pending = (PendingRequest) key.attachment();
+						if (read(pending)) {
+							key.cancel();
+							ready.add(pending);
+						}
+					}
+				}
+				if (!ready.isEmpty()) {
+					// flush the cancelled keys so the channels may go back to blocking mode
+					selector.selectNow();
+					for (PendingRequest pending : ready) {
+						dispatch(pending);
+					}
+					ready.clear();
+				}
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+			}
+		}
+	}
+
+	/**
+	 * Accept every pending client and register it for reads
+	 */
+	private void accept() throws IOException {
+		SocketChannel client;
+		while ((client = server.accept()) != null) {
+			long wait = HTTP1ServerASP.CONNECTION_LIMIT.acquire(client.socket().getInetAddress());
+			if (wait > 0) { // still blocking, as the 429 is written the ordinary way
+				client.socket().setSoTimeout(READ_TIMEOUT);
+				workers.limit(new HTTP1ServerASP.HTTPThread(client.socket(), port), RateLimiter.retryAfter(wait));
+				continue;
+			}
+			client.configureBlocking(false);
+			PendingRequest pending = new PendingRequest(client, false, 0);
+			try {
+				client.register(selector, SelectionKey.OP_READ, pending);
+				schedule(pending, HTTP1ServerASP.HTTPThread.HEADER_TIMEOUT);
+			} catch (ClosedChannelException e) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * @param channel-
+	 *            a persistent connection whose response has been written.
+	 *            Called from a worker; the selector takes over waiting for
+	 *            the next request.
+	 * @param served-
+	 *            how many requests the connection has carried so far
+	 */
+	void resume(SocketChannel channel, int served) {
+		resumed.add(new PendingRequest(channel, true, served));
+		selector.wakeup();
+	}
+
+	/**
+	 * Start watching the connections workers have given back
+	 */
+	private void register() {
+		PendingRequest pending;
+		while ((pending = resumed.poll()) != null) {
+			try {
+				pending.channel.configureBlocking(false);
+				pending.channel.register(selector, SelectionKey.OP_READ, pending);
+				schedule(pending, HTTP1ServerASP.HTTPThread.KEEP_ALIVE_TIMEOUT);
+			} catch (IOException e) {
+				closeQuietly(pending.channel);
+			}
+		}
+	}
+
+	/**
+	 * @param pending-
+	 *            the connection that became readable
+	 * @return true once a whole header block (or end of stream after some
+	 *         data) has been buffered and the request can be processed
+	 */
+	private boolean read(PendingRequest pending) throws IOException {
+		ByteBuffer buffer = pending.buffer;
+		if (!buffer.hasRemaining()) {
+			if (buffer.capacity() >= MAX_HEADER) {
+				reject(pending, 400, "Bad Request");
+				return false;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_HEADER));
+			buffer.flip();
+			bigger.put(buffer);
+			pending.buffer = bigger;
+			buffer = bigger;
+		}
+		int start = buffer.position();
+		int count;
+		try {
+			count = pending.channel.read(buffer);
+		} catch (IOException e) {
+			pending.deadline.cancel();
+			pending.channel.close();
+			return false;
+		}
+		if (count == -1) {
+			if (buffer.position() == 0) {
+				pending.deadline.cancel();
+				pending.channel.close();
+				return false;
+			}
+			return true;
+		}
+		if (pending.idle) { // the next request has started; it gets the header deadline from here
+			pending.idle = false;
+			schedule(pending, HTTP1ServerASP.HTTPThread.HEADER_TIMEOUT);
+		}
+		return headerComplete(buffer.array(), Math.max(0, start - 3), buffer.position());
+	}
+
+	/**
+	 * @return whether an empty line terminating the header block lies within
+	 *         the given range of the buffer
+	 */
+	static boolean headerComplete(byte[] data, int from, int to) {
+		return HTTP1ServerASP.RequestParser.findHeaderEnd(data, from, to) >= 0;
+	}
+
+	/**
+	 * Put the connection back in blocking mode and give it to a worker along
+	 * with the bytes we have read so far
+	 */
+	private void dispatch(PendingRequest pending) {
+		pending.deadline.cancel(); // the worker keeps its own from here
+		Socket client = pending.channel.socket();
+		try {
+			pending.channel.configureBlocking(true);
+			client.setSoTimeout(READ_TIMEOUT);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+			closeQuietly(pending.channel);
+			return;
+		}
+		ByteBuffer buffer = pending.buffer;
+		HTTP1ServerASP.HTTPThread worker = new HTTP1ServerASP.HTTPThread(client, port, buffer.array(),
+				buffer.position(), pending.served, this);
+		workers.execute(worker); // sheds, if it must, on another thread
+	}
+
+	/**
+	 * @param pending-
+	 *            a connection this thread is reading
+	 * @param millis-
+	 *            time it has, replacing any deadline it had
+	 */
+	private void schedule(PendingRequest pending, long millis) {
+		if (pending.deadline != null) {
+			pending.deadline.cancel();
+		}
+		pending.deadline = HTTP1ServerASP.HTTPThread.TIMERS.schedule(() -> {
+			expired.add(pending);
+			selector.wakeup();
+		}, millis);
+	}
+
+	/**
+	 * Answer 408 to every client whose header deadline passed, and quietly
+	 * close keep-alive connections left idle too long
+	 */
+	private void expire() {
+		PendingRequest pending;
+		while ((pending = expired.poll()) != null) {
+			SelectionKey key = pending.channel.keyFor(selector);
+			if (key == null || !key.isValid() || key.attachment() != pending) {
+				continue; // dispatched or closed before the deadline reached us
+			}
+			if (pending.idle) {
+				key.cancel();
+				closeQuietly(pending.channel);
+			} else {
+				reject(pending, 408, "Request Timeout");
+			}
+		}
+	}
+
+	/**
+	 * Send a short error response without involving a worker thread and drop
+	 * the connection. The response is written for as long as the socket takes
+	 * it; one that does not fit in the send buffer is dropped, since only a
+	 * client not reading its earlier responses leaves the buffer that full,
+	 * and the selector thread must not wait for it.
+	 */
+	private void reject(PendingRequest pending, int status, String message) {
+		pending.deadline.cancel();
+		SelectionKey key = pending.channel.keyFor(selector);
+		if (key != null) {
+			key.cancel();
+		}
+		byte[] line = HTTP1ServerASP.HTTPThread.statusLine(status);
+		byte[] rest = ("Content-Type: text/plain\r\nContent-Length: " + message.length()
+				+ "\r\nConnection: close\r\n\r\n" + message).getBytes();
+		ByteBuffer resp = ByteBuffer.allocate(line.length + rest.length).put(line).put(rest);
+		resp.flip();
+		try {
+			while (resp.hasRemaining() && pending.channel.write(resp) > 0) {
+				// the socket took part of it, offer the rest
+			}
+		} catch (IOException e) {
+			closeQuietly(pending.channel); // the client is gone already
+			return;
+		}
+		// unread request bytes would otherwise make the close a reset that destroys the answer
+		HTTP1ServerASP.HTTPThread.LINGER.close(pending.channel.socket());
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+		}
+	}
+}
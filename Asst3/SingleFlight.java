@@ -0,0 +1,139 @@
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical work, so a crowd of clients missing the
+ * same cache entry at the same moment costs one disk read or one script run
+ * instead of one each. The first caller for a key becomes the leader and
+ * does the work; whoever joins while it is in flight waits for the leader's
+ * result instead. A follower that waits too long, or whose leader failed,
+ * gets null and does the work itself, so a stuck leader can delay others
+ * but never take them down with it. Nothing is remembered once the work is
+ * done; keeping results is the caches' business.
+ */
+class SingleFlight<K, V> {
+
+	private final String name;
+	private final ConcurrentHashMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+	final LongAdder led = new LongAdder();
+	final LongAdder shared = new LongAdder(); // followers handed the leader's result
+	final LongAdder abandoned = new LongAdder(); // followers that gave up waiting, or whose leader failed
+
+	/**
+	 * @param name-
+	 *            what is coalesced, for the metrics
+	 */
+	SingleFlight(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param key-
+	 *            identifies the work
+	 * @return the flight for the key, led by the caller if none was in the
+	 *         air
+	 */
+	Flight join(K key) {
+		CompletableFuture<V> mine = new CompletableFuture<>();
+		CompletableFuture<V> theirs = flights.putIfAbsent(key, mine);
+		if (theirs == null) {
+			led.increment();
+			return new Flight(key, mine, true);
+		}
+		return new Flight(key, theirs, false);
+	}
+
+	/**
+	 * @return work in flight
+	 */
+	int inFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * Put this coalescer's counters into the status page's figures
+	 */
+	void report(Map<String, Long> gauges) {
+		String prefix = "single_flight_" + name;
+		gauges.put(prefix + "_in_flight", (long) inFlight());
+		gauges.put(prefix + "_led_total", led.sum());
+		gauges.put(prefix + "_shared_total", shared.sum());
+		gauges.put(prefix + "_abandoned_total", abandoned.sum());
+	}
+
+	/**
+	 * One piece of work in the air and the caller's part in it
+	 */
+	class Flight {
+		private final K key;
+		private final CompletableFuture<V> result;
+		private final boolean leader;
+
+		private Flight(K key, CompletableFuture<V> result, boolean leader) {
+			this.key = key;
+			this.result = result;
+			this.leader = leader;
+		}
+
+		/**
+		 * @return whether the caller has to do the work and complete()
+		 */
+		boolean leader() {
+			return leader;
+		}
+
+		/**
+		 * @param work-
+		 *            the work, done by the leader on its own thread
+		 * @return what the work returned, which the followers are handed too
+		 */
+		V complete(Callable<V> work) throws Exception {
+			try {
+				V value = work.call();
+				finish(value);
+				return value;
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+				flights.remove(key, result);
+				throw t;
+			}
+		}
+
+		/**
+		 * @param value-
+		 *            the leader's result, handed to the followers, who go on
+		 *            at once while the leader may still have work of its own
+		 */
+		void finish(V value) {
+			result.complete(value);
+			flights.remove(key, result);
+		}
+
+		/**
+		 * @param millis-
+		 *            longest to wait for the leader
+		 * @return the leader's result, or null if the caller has to do the
+		 *         work itself
+		 */
+		V await(long millis) {
+			try {
+				V value = result.get(millis, TimeUnit.MILLISECONDS);
+				shared.increment();
+				return value;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException e) {
+				// the leader failed or is taking too long, go it alone
+			}
+			abandoned.increment();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the contents of small static files in direct (off-heap) buffers so
+ * hot files such as index.html are served without touching the disk or
+ * allocating a new byte[] per request. Entries are keyed by canonical path
+ * and checked against the file's lastModified and length on every hit.
+ *
+ * The total size is bounded by a byte budget. Eviction is LRU, but a new
+ * file only gets in if a frequency sketch says it is used more often than
+ * the entry it would push out (TinyLFU admission), so one pass over many
+ * large files cannot flush the files that are actually hot.
+ *
+ * Hits take no lock: lookups go to a concurrent map, and the access is
+ * only noted in a small ring buffer per stripe of threads. Whoever fills
+ * half a ring drains all of them into the LRU order and the sketch, if the
+ * lock is free; a note overwritten before it is drained is simply lost,
+ * which makes the LRU order and the frequencies a sample, not a tally.
+ */
+class StaticCache {
+
+	private static final int READ_BUFFER = 32; // accesses noted per stripe between drains, a power of two
+
+	private final long budget; // bytes of file data we may hold
+	private final long maxEntry; // files larger than this are never cached
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	// the rest is guarded by the lock
+	private long used = 0;
+	private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(64, 0.75f, true);
+	private final FrequencySketch sketch = new FrequencySketch(1024);
+	private final ReadBuffer[] reads;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	/**
+	 * A cached file
+	 */
+	private static class Entry {
+		private final String key;
+		private final ByteBuffer data;
+		private final long lastModified;
+
+		Entry(String key, ByteBuffer data, long lastModified) {
+			this.key = key;
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Keys looked up by one stripe of threads, waiting to be drained
+	 */
+	private static class ReadBuffer {
+		private final AtomicReferenceArray<String> keys = new AtomicReferenceArray<>(READ_BUFFER);
+		private final AtomicLong written = new AtomicLong();
+		private volatile long drained = 0; // written under the cache's lock, read as a hint
+	}
+
+	StaticCache(long budget, long maxEntry) {
+		this.budget = budget;
+		this.maxEntry = Math.min(maxEntry, budget);
+		int stripes = Integer.highestOneBit(Math.max(1, Math.min(16, Runtime.getRuntime().availableProcessors())));
+		this.reads = new ReadBuffer[stripes];
+		for (int i = 0; i < stripes; i++) {
+			reads[i] = new ReadBuffer();
+		}
+	}
+
+	/**
+	 * @param key-
+	 *            canonical path of the file
+	 * @param lastModified-
+	 *            the file's current modification time
+	 * @param length-
+	 *            the file's current length
+	 * @return a private read-only view of the cached contents, or null if the
+	 *         file is not cached or the cached copy is stale
+	 */
+	ByteBuffer get(String key, long lastModified, long length) {
+		if (budget <= 0) {
+			return null;
+		}
+		record(key);
+		Entry entry = entries.get(key);
+		if (entry != null && entry.lastModified == lastModified && entry.data.capacity() == length) {
+			hits.increment();
+			return entry.data.duplicate();
+		}
+		if (entry != null) { // changed on disk
+			lock.lock();
+			try {
+				remove(entry);
+			} finally {
+				lock.unlock();
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * @param key-
+	 *            canonical path of the file
+	 * @param channel-
+	 *            the open file, read from position 0
+	 * @param lastModified-
+	 *            modification time the contents belong to
+	 * @return the contents in a direct buffer if the file was admitted to the
+	 *         cache, or null if it should be streamed from disk instead
+	 */
+	ByteBuffer load(String key, FileChannel channel, long lastModified) throws IOException {
+		long length = channel.size();
+		if (budget <= 0 || length > maxEntry || !admit(key, length)) {
+			return null;
+		}
+		ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+		while (data.hasRemaining()) {
+			if (channel.read(data, data.position()) < 0) {
+				return null; // shrank while we read it
+			}
+		}
+		data.flip();
+		ByteBuffer view = data.asReadOnlyBuffer();
+		Entry entry = new Entry(key, view, lastModified);
+		lock.lock();
+		try {
+			Entry old = lru.put(key, entry);
+			if (old != null) {
+				used -= old.data.capacity();
+			}
+			entries.put(key, entry);
+			used += length;
+			evict();
+		} finally {
+			lock.unlock();
+		}
+		return view.duplicate();
+	}
+
+	/**
+	 * Note an access for the LRU order and the sketch, draining the buffers
+	 * once this one is half full and nobody else is at it
+	 */
+	private void record(String key) {
+		ReadBuffer buffer = reads[(int) Thread.currentThread().getId() & (reads.length - 1)];
+		long n = buffer.written.getAndIncrement();
+		buffer.keys.lazySet((int) n & (READ_BUFFER - 1), key);
+		if (n + 1 - buffer.drained >= READ_BUFFER / 2 && lock.tryLock()) {
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Replay the noted accesses. Called with the lock held.
+	 */
+	private void drain() {
+		for (ReadBuffer buffer : reads) {
+			long written = buffer.written.get();
+			for (int i = 0; i < READ_BUFFER; i++) {
+				String key = buffer.keys.getAndSet(i, null);
+				if (key != null) {
+					sketch.increment(key);
+					lru.get(key); // moves it to the most recently used end
+				}
+			}
+			buffer.drained = written;
+		}
+	}
+
+	/**
+	 * @return whether a file of the given size is worth more than the
+	 *         entries that would have to go to make room for it
+	 */
+	private boolean admit(String key, long length) {
+		lock.lock();
+		try {
+			drain();
+			if (used + length <= budget) {
+				return true;
+			}
+			int candidate = sketch.frequency(key);
+			long freed = 0;
+			Iterator<Entry> victims = lru.values().iterator();
+			while (used - freed + length > budget && victims.hasNext()) {
+				Entry victim = victims.next();
+				if (sketch.frequency(victim.key) >= candidate) {
+					rejections.increment();
+					return false;
+				}
+				freed += victim.data.capacity();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drop an entry if it is still the one cached. Called with the lock held.
+	 */
+	private void remove(Entry entry) {
+		if (lru.remove(entry.key, entry)) {
+			entries.remove(entry.key, entry);
+			used -= entry.data.capacity();
+		}
+	}
+
+	/**
+	 * Drop least recently used entries until we are within budget. Called
+	 * with the lock held.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> victims = lru.entrySet().iterator();
+		while (used > budget && victims.hasNext()) {
+			Entry victim = victims.next().getValue();
+			victims.remove();
+			entries.remove(victim.key, victim);
+			used -= victim.data.capacity();
+			evictions.increment();
+		}
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long misses() {
+		return misses.sum();
+	}
+
+	long evictions() {
+		return evictions.sum();
+	}
+
+	long rejections() {
+		return rejections.sum();
+	}
+
+	long usedBytes() {
+		lock.lock();
+		try {
+			return used;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count-min sketch of how often each key was requested recently. Counts
+	 * saturate at 15 and are halved once enough samples have been taken, so
+	 * popularity that is not renewed fades away.
+	 */
+	private static class FrequencySketch {
+		private final byte[][] table = new byte[4][];
+		private final int mask;
+		private final int sampleSize;
+		private int samples = 0;
+
+		FrequencySketch(int width) {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = new byte[width];
+			}
+			this.mask = width - 1;
+			this.sampleSize = width * 10;
+		}
+
+		private int index(int hash, int row) {
+			int h = hash * (0x9E3779B9 + 2 * row + 1);
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		void increment(String key) {
+			int hash = key.hashCode();
+			for (int row = 0; row < table.length; row++) {
+				int i = index(hash, row);
+				if (table[row][i] < 15) {
+					table[row][i]++;
+				}
+			}
+			if (++samples >= sampleSize) {
+				for (byte[] counters : table) {
+					for (int i = 0; i < counters.length; i++) {
+						counters[i] >>= 1;
+					}
+				}
+				samples /= 2;
+			}
+		}
+
+		int frequency(String key) {
+			int hash = key.hashCode();
+			int min = 15;
+			for (int row = 0; row < table.length; row++) {
+				min = Math.min(min, table[row][index(hash, row)]);
+			}
+			return min;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.InputStream;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * cgi-bin/store.cgi as an in-process handler: the same log in form, item
+ * drop-down and cookie based cart, answered without starting Python for
+ * every click.
+ */
+public class StoreHandler implements Handler {
+
+	private static final List<String> ITEMS = Arrays.asList("Toyota", "Ford", "Tesla", "Subaru");
+	private static final DateTimeFormatter COOKIE_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+	@Override
+	public void handle(HTTP1ServerASP.ReqObj request, InputStream body, Response response) throws Exception {
+		String method = request.method();
+		Map<String, String> session = request.cookies() == null ? null : Handler.parseQuery(request.cookies());
+		String html;
+		if (method.equals("POST")) {
+			html = post(request, body, session, response);
+		} else if (method.equals("GET") && session != null) {
+			String name = session.get("name");
+			html = name != null ? dropDown(name, cart(session)) : login();
+		} else if (session == null) {
+			html = login();
+		} else {
+			return; // nothing to say, like the script
+		}
+		response.write("<html>\n<body>" + html + "</body>\n</html>\n");
+	}
+
+	/**
+	 * Log in, or add or remove an item, and update the cookies
+	 */
+	private String post(HTTP1ServerASP.ReqObj request, InputStream body, Map<String, String> session,
+			Response response) throws Exception {
+		if (request.contentLength() <= 0) {
+			return login();
+		}
+		Map<String, String> form = Handler.parseQuery(Handler.readBody(body));
+		String action = form.get("action");
+		if (session == null || !session.containsKey("name")) {
+			String name = form.get("name");
+			if (name != null && form.containsKey("password") && "Submit".equals(action)) {
+				String expires = COOKIE_DATE.format(ZonedDateTime.now(ZoneOffset.UTC).plusMinutes(3));
+				response.addCookie("cart=");
+				response.addCookie("name=" + name + "; expires=" + expires);
+				return dropDown(name, null);
+			}
+			return login();
+		}
+		String name = session.get("name");
+		String item = form.get("item");
+		boolean add = "Add To Cart".equals(action);
+		if ((add || "Remove From Cart".equals(action)) && item != null) {
+			List<String> cart = cart(session);
+			if (cart == null) {
+				cart = new ArrayList<>();
+			}
+			if (add) {
+				cart.add(item);
+			} else {
+				cart = new ArrayList<>(new LinkedHashSet<>(cart));
+				cart.remove(item);
+			}
+			response.addCookie("cart=" + String.join(",", cart));
+			return dropDown(name, cart);
+		}
+		return dropDown(name, cart(session));
+	}
+
+	/**
+	 * @return the items in the cart cookie, or null if there is none
+	 */
+	private static List<String> cart(Map<String, String> session) {
+		String cart = session.get("cart");
+		return cart == null ? null : new ArrayList<>(Arrays.asList(cart.split(",")));
+	}
+
+	private static int price(String item) {
+		switch (item) {
+		case "Toyota":
+			return 100;
+		case "Ford":
+			return 200;
+		case "Tesla":
+			return 300;
+		case "Subaru":
+			return 400;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * The items that can still be bought and, if there is a cart, its contents
+	 */
+	private static String dropDown(String name, List<String> cart) {
+		Set<String> inCart = cart == null ? null : new LinkedHashSet<>(cart);
+		StringBuilder html = new StringBuilder();
+		html.append("<p> Greetings <b>").append(name).append("</b> here are some items to buy </p>");
+		html.append("\n<form action=\"/cgi-bin/store.cgi\" method=\"post\">\n  <select name=\"item\">");
+		for (String item : ITEMS) {
+			if (inCart == null || !inCart.contains(item)) {
+				html.append("<option value=\"").append(item).append("\">").append(item).append(" $")
+						.append(price(item)).append("</option>");
+			}
+		}
+		html.append("</select>\n  <input type=\"submit\" name=\"action\" value=\"Add To Cart\">\n</form>\n");
+		if (inCart == null) {
+			html.append("<p> Cart Empty</p>");
+			return html.toString();
+		}
+		html.append("<p> Your Cart <p>\n        <table border=\"1\">\n      <tr>\n        <th>Item</th>\n"
+				+ "        <th>Price</th>\n        <th>Remove</th>\n      </tr>\n\n      ");
+		int total = 0;
+		for (String item : inCart) {
+			int price = price(item);
+			total += price;
+			html.append("<tr><td>").append(item).append("</td>");
+			html.append("<td>$").append(price).append("</td>");
+			html.append("<td>\n            <form action=\"/cgi-bin/store.cgi\" method=\"post\">\n"
+					+ "          <input type=\"hidden\" name=\"item\" value=\"").append(item).append("\">\n"
+					+ "          <input type=\"submit\"name=\"action\" value=\"Remove From Cart\">\n"
+					+ "        </form></td></tr>\n        ");
+		}
+		html.append("</table><p>Total: $").append(total).append("</p>");
+		return html.toString();
+	}
+
+	private static String login() {
+		return "\n    <form action=\"/cgi-bin/store.cgi\" method=\"post\">\n  Name:<br>\n"
+				+ "  <input type=\"text\" name=\"name\">\n  <br>\n  password:<br>\n"
+				+ "  <input type=\"text\" name=\"password\">\n  <br><br>\n"
+				+ "  <input type=\"submit\" name=\"action\" value=\"Submit\">\n    </form>\n    ";
+	}
+}
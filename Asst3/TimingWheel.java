@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel for the connection deadlines: the whole header
+ * block, the request body and the keep-alive wait. Time is cut into ticks
+ * and every timeout hangs in the bucket of the tick it is due in, modulo
+ * the wheel size, on a doubly linked list, so scheduling and cancelling
+ * are O(1) however many connections are waiting; a timeout due more than
+ * one turn ahead simply stays put until the wheel comes round to it in the
+ * right turn. One thread advances the wheel and runs what is due, so a
+ * task must be quick: the connection deadlines only flag the connection
+ * and shut down its input, which wakes the thread blocked reading it.
+ * Deadlines fire up to a tick late, never early.
+ */
+class TimingWheel implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private final long tick; // nanoseconds per bucket
+	private final Bucket[] wheel;
+	private final int mask;
+	private final long origin = System.nanoTime();
+	// last tick whose bucket has been run, written under that bucket's lock
+	private volatile long processed = 0;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	final LongAdder scheduled = new LongAdder();
+	final LongAdder expired = new LongAdder();
+	final LongAdder cancelled = new LongAdder();
+
+	/**
+	 * @param tickMillis-
+	 *            resolution of the wheel
+	 * @param buckets-
+	 *            slots in the wheel, rounded up to a power of two; one turn
+	 *            is tickMillis * buckets
+	 */
+	TimingWheel(long tickMillis, int buckets) {
+		this.tick = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		Thread thread = new Thread(this, "timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param task-
+	 *            what to run once the delay is up, on the wheel's thread
+	 * @param delayMillis-
+	 *            how long from now
+	 * @return the timeout, to cancel it
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+		long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) - origin;
+		Timeout timeout = new Timeout(task, (due + tick - 1) / tick);
+		pending.incrementAndGet();
+		scheduled.increment();
+		while (true) {
+			// a tick already run would only be seen again a whole turn later
+			long at = Math.max(timeout.deadline, processed + 1);
+			Bucket bucket = wheel[(int) (at & mask)];
+			synchronized (bucket) {
+				if (at > processed) {
+					bucket.add(timeout);
+					return timeout;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return timeouts scheduled and neither run nor cancelled yet
+	 */
+	int pending() {
+		return pending.get();
+	}
+
+	@Override
+	public void run() {
+		List<Timeout> due = new ArrayList<>();
+		while (true) {
+			long next = processed + 1;
+			long wait = origin + next * tick - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			Bucket bucket = wheel[(int) (next & mask)];
+			synchronized (bucket) {
+				bucket.collect(next, due);
+				processed = next;
+			}
+			for (Timeout timeout : due) {
+				try {
+					timeout.task.run();
+				} catch (Exception e) { // one bad task must not stop the clock
+					LOGGER.log(Level.SEVERE, HTTP1ServerASP.getStackTrace(e));
+				}
+			}
+			due.clear();
+		}
+	}
+
+	/**
+	 * A scheduled task, linked into the bucket of the tick it is due in
+	 */
+	class Timeout {
+		private final Runnable task;
+		private final long deadline; // tick it is due in
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private Bucket bucket; // the rest is guarded by the bucket's lock
+		private Timeout prev;
+		private Timeout next;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return true if the task will not run, false if it already has or
+		 *         is about to
+		 */
+		boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			cancelled.increment();
+			Bucket b = bucket;
+			synchronized (b) {
+				b.remove(this);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The timeouts hashed to one slot of the wheel
+	 */
+	private class Bucket {
+		private Timeout head;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.next = head;
+			if (head != null) {
+				head.prev = timeout;
+			}
+			head = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else if (head == timeout) {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+		}
+
+		/**
+		 * Unlink every timeout due by the given tick into the list; later
+		 * turns stay where they are
+		 */
+		void collect(long now, List<Timeout> due) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= now) {
+					remove(timeout);
+					if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+						pending.decrementAndGet();
+						expired.increment();
+						due.add(timeout);
+					}
+				}
+				timeout = next;
+			}
+		}
+	}
+}
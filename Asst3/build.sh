@@ -1 +1 @@
-javac -cp . HTTP1ServerASP.java
\ No newline at end of file
+javac -cp . *.java
\ No newline at end of file
@@ -1,2 +1,2 @@
-javac -cp . HTTP1ServerASP.java
+javac -cp . *.java
 java -cp . HTTP1ServerASP 3456
\ No newline at end of file
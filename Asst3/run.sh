@@ -1 +1 @@
-javac -cp . HTTP1ServerASP.java && java -cp . HTTP1ServerASP 3456
\ No newline at end of file
+javac -cp . *.java && java -cp . HTTP1ServerASP 3456
\ No newline at end of file
@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the same workloads against each generation of the server and prints
+ * one table comparing them. Every server is started fresh for every
+ * workload, in its own JVM on its own port, with the same docroot as its
+ * working directory, so the resident set and GC time in a row belong to
+ * that workload alone. The load is LoadGenerator's open loop at a fixed
+ * rate with a new connection per request, which is the one way all four
+ * servers can be spoken to: Asst0 gets the same requests without a version
+ * on the request line, the others get HTTP/1.0.
+ *
+ * Usage: java -cp build Compare [--rate 100] [--cgi-rate 10] [--duration 20] [--warmup 5]
+ * [--connections 128] [--servers Asst0,Asst1,Asst2,Asst3]
+ * [--workloads static,mixed,cgi-form,cgi-get,cgi-post] [--docroot ../../Asst3]
+ * [--classes build] [--port 3460] [--mode pool] [--jvm-options "-Xmx64m"]
+ * [--verbose false]
+ *
+ * A workload a server cannot answer is left out of its rows rather than
+ * counted as failures: Asst0 only does GET, Asst1 has no CGI, Asst2 runs
+ * CGI only for urlencoded POSTs, and only Asst3 takes CGI GETs and
+ * multipart uploads. RSS is the peak resident set (VmHWM) read
+ * from /proc before the server is stopped, and GC time is the sum of the
+ * pauses the server's own -Xlog:gc reported. CGI workloads are offered
+ * --cgi-rate, a tenth of --rate unless given, since a process per
+ * request costs far more than a file; offer them --rate to compare how
+ * each generation behaves overloaded instead.
+ */
+public class Compare {
+
+	/**
+	 * One server generation: where its classes are and what it can answer
+	 */
+	private static class Server {
+		private final String name;
+		private final String mainClass;
+		private final String profile;
+		private final List<String> workloads;
+
+		Server(String name, String mainClass, String profile, String... workloads) {
+			this.name = name;
+			this.mainClass = mainClass;
+			this.profile = profile;
+			this.workloads = Arrays.asList(workloads);
+		}
+	}
+
+	private static final List<Server> SERVERS = Arrays.asList(
+			new Server("Asst0", "SimpleHTTPServer", "simple", "static"),
+			new Server("Asst1", "PartialHTTP1Server", "close", "static", "mixed"),
+			new Server("Asst2", "HTTP1Server", "close", "static", "mixed", "cgi-form"),
+			new Server("Asst3", "HTTP1ServerASP", "close", "static", "mixed", "cgi-form", "cgi-get", "cgi-post"));
+
+	private static final Map<String, String> WORKLOADS = new LinkedHashMap<>();
+	static {
+		WORKLOADS.put("static", "static=100");
+		WORKLOADS.put("mixed", "static=60,conditional=25,head=15");
+		WORKLOADS.put("cgi-form", "form=100");
+		WORKLOADS.put("cgi-get", "cgi=100");
+		WORKLOADS.put("cgi-post", "post=100");
+	}
+
+	private static final Pattern PAUSE = Pattern.compile("Pause.* ([0-9.]+)ms$");
+
+	private final Map<String, String> options;
+	private final File docroot;
+	private final File classes;
+	private final List<Row> rows = new ArrayList<>();
+
+	/**
+	 * What one server did under one workload
+	 */
+	private static class Row {
+		String server;
+		String workload;
+		double offered;
+		double throughput;
+		double p99;
+		long completed;
+		long unavailable;
+		long failed;
+		long rssKb = -1;
+		double gcMillis;
+		int gcPauses;
+	}
+
+	Compare(Map<String, String> options) {
+		this.options = options;
+		this.docroot = new File(options.getOrDefault("docroot", "../../Asst3")).getAbsoluteFile();
+		this.classes = new File(options.getOrDefault("classes", "build")).getAbsoluteFile();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				usage();
+				return;
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		Compare compare = new Compare(options);
+		compare.run();
+		compare.print(System.out);
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java -cp build Compare [--rate 100] [--cgi-rate 10] [--duration 20] [--warmup 5]"
+				+ " [--connections 128] [--servers Asst0,Asst1,Asst2,Asst3]"
+				+ " [--workloads static,mixed,cgi-form,cgi-get,cgi-post] [--docroot ../../Asst3] [--classes build]"
+				+ " [--port 3460] [--mode pool] [--jvm-options \"-Xmx64m\"] [--verbose false]");
+	}
+
+	void run() throws IOException, InterruptedException {
+		List<String> servers = Arrays.asList(options.getOrDefault("servers", "Asst0,Asst1,Asst2,Asst3").split(","));
+		List<String> workloads = Arrays
+				.asList(options.getOrDefault("workloads", String.join(",", WORKLOADS.keySet())).split(","));
+		int port = Integer.parseInt(options.getOrDefault("port", "3460"));
+		for (String workload : workloads) {
+			if (!WORKLOADS.containsKey(workload)) {
+				throw new IllegalArgumentException("no workload called " + workload);
+			}
+			for (int i = 0; i < SERVERS.size(); i++) {
+				Server server = SERVERS.get(i);
+				if (servers.contains(server.name) && server.workloads.contains(workload)) {
+					System.err.println(server.name + " " + workload + "...");
+					rows.add(measure(server, workload, port + i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start the server, put one workload through it and stop it again
+	 */
+	private Row measure(Server server, String workload, int port) throws IOException, InterruptedException {
+		File gcLog = File.createTempFile("compare-gc", ".log");
+		List<String> command = new ArrayList<>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		command.add("-Xlog:gc:file=" + gcLog.getPath());
+		String jvmOptions = options.getOrDefault("jvm-options", "").trim();
+		if (!jvmOptions.isEmpty()) {
+			command.addAll(Arrays.asList(jvmOptions.split("\\s+")));
+		}
+		command.add("-cp");
+		command.add(new File(classes, server.name).getPath());
+		command.add(server.mainClass);
+		command.add(String.valueOf(port));
+		if (server.name.equals("Asst3")) {
+			command.add(options.getOrDefault("mode", "pool"));
+		}
+		Process process = new ProcessBuilder(command).directory(docroot).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+		Row row = new Row();
+		row.server = server.name;
+		row.workload = workload;
+		try {
+			awaitListening(process, port);
+			Map<String, String> load = new LinkedHashMap<>();
+			load.put("target", "localhost:" + port);
+			load.put("profile", server.profile);
+			load.put("mix", WORKLOADS.get(workload));
+			load.put("docroot", docroot.getPath());
+			for (String option : new String[] { "duration", "warmup", "connections", "seed" }) {
+				if (options.containsKey(option)) {
+					load.put(option, options.get(option));
+				}
+			}
+			row.offered = rate(workload);
+			load.put("rate", String.valueOf(row.offered));
+			load.putIfAbsent("duration", "20");
+			load.putIfAbsent("connections", "128");
+			LoadGenerator.Report report = new LoadGenerator(load).run();
+			if (Boolean.parseBoolean(options.getOrDefault("verbose", "false"))) {
+				report.print(System.err);
+				System.err.println();
+			}
+			row.throughput = report.throughput();
+			row.p99 = report.correctedMillis(0.99);
+			row.completed = report.completed();
+			row.unavailable = report.count(503);
+			row.failed = report.failed();
+			row.rssKb = peakRss(process.pid());
+		} finally {
+			process.destroy();
+			if (!process.waitFor(10, TimeUnit.SECONDS)) {
+				process.destroyForcibly().waitFor();
+			}
+		}
+		for (String line : Files.readAllLines(gcLog.toPath(), StandardCharsets.UTF_8)) {
+			Matcher pause = PAUSE.matcher(line);
+			if (pause.find()) {
+				row.gcMillis += Double.parseDouble(pause.group(1));
+				row.gcPauses++;
+			}
+		}
+		gcLog.delete();
+		return row;
+	}
+
+	/**
+	 * @return requests a second to offer the workload
+	 */
+	private double rate(String workload) {
+		double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+		if (workload.startsWith("cgi-")) {
+			return Double.parseDouble(options.getOrDefault("cgi-rate", String.valueOf(rate / 10)));
+		}
+		return rate;
+	}
+
+	/**
+	 * Wait until the server accepts connections, for at most ten seconds
+	 */
+	private static void awaitListening(Process process, int port) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (true) {
+			if (!process.isAlive()) {
+				throw new IOException("server on port " + port + " exited with " + process.exitValue());
+			}
+			try (Socket probe = new Socket()) {
+				probe.connect(new InetSocketAddress("localhost", port), 1000);
+				return;
+			} catch (IOException e) {
+				if (System.nanoTime() - deadline >= 0) {
+					throw new IOException("server did not start listening on port " + port, e);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * @return the peak resident set of the process in KB, -1 where /proc
+	 *         cannot tell us
+	 */
+	private static long peakRss(long pid) {
+		try {
+			for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath())) {
+				if (line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	void print(PrintStream out) {
+		out.printf(Locale.ROOT, "%ss per row, new connection per request%n%n", options.getOrDefault("duration", "20"));
+		out.println("server  workload   offered    req/s   p99(ms)    503%  errors  RSS(MB)  GC(ms)  pauses");
+		for (Row row : rows) {
+			out.printf(Locale.ROOT, "%-7s %-9s %8.1f %8.1f %9.1f %7.2f %7d %8s %7.1f %7d%n", row.server, row.workload,
+					row.offered, row.throughput, row.p99, percent(row.unavailable, row.completed + row.failed), row.failed,
+					row.rssKb < 0 ? "n/a" : String.format(Locale.ROOT, "%.1f", row.rssKb / 1024.0), row.gcMillis,
+					row.gcPauses);
+		}
+	}
+
+	private static double percent(long part, long whole) {
+		return whole == 0 ? 0 : 100.0 * part / whole;
+	}
+}
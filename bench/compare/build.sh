@@ -0,0 +1,7 @@
+# Compiles each server generation into build/<AsstN> and the runner into
+# build, leaving the server directories free of class files.
+for dir in Asst0 Asst1 Asst2 Asst3; do
+	mkdir -p build/$dir
+	javac -d build/$dir -sourcepath ../../$dir ../../$dir/*.java || exit 1
+done
+javac -d build -sourcepath ../loadgen Compare.java ../loadgen/LoadGenerator.java
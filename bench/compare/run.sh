@@ -0,0 +1,5 @@
+#!/bin/sh
+# Builds everything and prints the comparison table. Arguments go to
+# Compare, e.g. "sh run.sh --rate 300 --workloads static,cgi-get".
+sh build.sh || exit 1
+java -cp build Compare "$@"
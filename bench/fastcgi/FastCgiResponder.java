@@ -0,0 +1,212 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal multiplexing FastCGI responder that stands in for a long-lived
+ * application server when trying HTTP1ServerASP's FastCGI support. Every
+ * request is answered the way cgi-bin/test.cgi answers it (a table of the
+ * CGI variables and the request body), but without starting an interpreter.
+ * Requests on one connection are handled concurrently by a thread pool.
+ *
+ * Usage: java -cp . FastCgiResponder unix:/tmp/test.sock | 127.0.0.1:9000
+ */
+public class FastCgiResponder {
+
+	private static final int BEGIN_REQUEST = 1;
+	private static final int ABORT_REQUEST = 2;
+	private static final int END_REQUEST = 3;
+	private static final int PARAMS = 4;
+	private static final int STDIN = 5;
+	private static final int STDOUT = 6;
+	private static final int GET_VALUES = 9;
+	private static final int GET_VALUES_RESULT = 10;
+
+	private static final ExecutorService WORKERS = Executors.newFixedThreadPool(8);
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: java -cp . FastCgiResponder unix:/tmp/test.sock | 127.0.0.1:9000");
+			return;
+		}
+		ServerSocketChannel server;
+		SocketAddress address;
+		if (args[0].startsWith("unix:")) {
+			Path path = Path.of(args[0].substring("unix:".length()));
+			Files.deleteIfExists(path);
+			address = UnixDomainSocketAddress.of(path);
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			int colon = args[0].lastIndexOf(':');
+			address = new InetSocketAddress(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+			server = ServerSocketChannel.open();
+		}
+		server.bind(address);
+		System.err.println("FastCGI responder listening on " + args[0]);
+		while (true) {
+			SocketChannel client = server.accept();
+			Thread reader = new Thread(() -> serve(client));
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/**
+	 * A request being received
+	 */
+	private static class Request {
+		private final int id;
+		private final ByteArrayOutputStream params = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+		private Map<String, String> env;
+
+		Request(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Read records from one connection until it closes
+	 */
+	private static void serve(SocketChannel channel) {
+		Map<Integer, Request> requests = new HashMap<>();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		try (SocketChannel c = channel) {
+			while (true) {
+				header.clear();
+				readFully(channel, header);
+				header.flip();
+				header.get();
+				int type = header.get() & 0xff;
+				int id = header.getShort() & 0xffff;
+				int length = header.getShort() & 0xffff;
+				int padding = header.get() & 0xff;
+				ByteBuffer content = ByteBuffer.allocate(length + padding);
+				readFully(channel, content);
+				byte[] data = new byte[length];
+				content.flip();
+				content.get(data);
+				switch (type) {
+				case GET_VALUES:
+					ByteArrayOutputStream values = new ByteArrayOutputStream();
+					pair(values, "FCGI_MPXS_CONNS", "1");
+					pair(values, "FCGI_MAX_REQS", "64");
+					write(channel, 0, GET_VALUES_RESULT, values.toByteArray());
+					break;
+				case BEGIN_REQUEST:
+					requests.put(id, new Request(id));
+					break;
+				case PARAMS:
+					requests.get(id).params.write(data);
+					break;
+				case STDIN:
+					Request request = requests.get(id);
+					if (length > 0) {
+						request.stdin.write(data);
+					} else {
+						requests.remove(id);
+						request.env = decode(request.params.toByteArray());
+						WORKERS.execute(() -> respond(channel, request));
+					}
+					break;
+				case ABORT_REQUEST:
+					if (requests.remove(id) != null) {
+						end(channel, id);
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// client went away
+		}
+	}
+
+	/**
+	 * Answer like cgi-bin/test.cgi
+	 */
+	private static void respond(SocketChannel channel, Request request) {
+		Map<String, String> env = request.env;
+		String html = "<html>\n<body>\n<table border=\"1\">\n" + "<tr><td>CONTENT_LENGTH</td><td>"
+				+ env.getOrDefault("CONTENT_LENGTH", "") + "</td></tr>\n" + "<tr><td>SCRIPT_NAME</td><td>"
+				+ env.getOrDefault("SCRIPT_NAME", "") + "</td></tr>\n" + "<tr><td>HTTP_FROM</td><td>"
+				+ env.getOrDefault("HTTP_FROM", "") + "</td></tr>\n" + "<tr><td>HTTP_USER_AGENT</td><td>"
+				+ env.getOrDefault("HTTP_USER_AGENT", "") + "</td></tr>\n" + "<tr><td>Payload</td><td>"
+				+ new String(request.stdin.toByteArray(), StandardCharsets.UTF_8) + "</td></tr>\n"
+				+ "</table>\n</body>\n</html>";
+		try {
+			write(channel, request.id, STDOUT,
+					("Content-Type: text/html\r\n\r\n" + html).getBytes(StandardCharsets.UTF_8));
+			write(channel, request.id, STDOUT, new byte[0]);
+			end(channel, request.id);
+		} catch (IOException e) {
+			// client went away
+		}
+	}
+
+	private static void end(SocketChannel channel, int id) throws IOException {
+		write(channel, id, END_REQUEST, new byte[8]); // app status 0, FCGI_REQUEST_COMPLETE
+	}
+
+	private static void write(SocketChannel channel, int id, int type, byte[] content) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(8 + content.length);
+		record.put((byte) 1).put((byte) type).putShort((short) id).putShort((short) content.length).put((byte) 0)
+				.put((byte) 0).put(content);
+		record.flip();
+		synchronized (channel) {
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	private static Map<String, String> decode(byte[] data) {
+		Map<String, String> env = new HashMap<>();
+		int pos = 0;
+		while (pos < data.length) {
+			int[] lengths = new int[2];
+			for (int i = 0; i < 2; i++) {
+				if ((data[pos] & 0x80) == 0) {
+					lengths[i] = data[pos++];
+				} else {
+					lengths[i] = ByteBuffer.wrap(data, pos, 4).getInt() & 0x7fffffff;
+					pos += 4;
+				}
+			}
+			env.put(new String(data, pos, lengths[0], StandardCharsets.UTF_8),
+					new String(data, pos + lengths[0], lengths[1], StandardCharsets.UTF_8));
+			pos += lengths[0] + lengths[1];
+		}
+		return env;
+	}
+
+	private static void pair(ByteArrayOutputStream out, String name, String value) {
+		out.write(name.length());
+		out.write(value.length());
+		out.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+		out.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+# Compiles the stand-in responder into build and the server into
+# build/server, keeping class files out of both source directories.
+mkdir -p build/server
+javac -d build FastCgiResponder.java || exit 1
+javac -d build/server -sourcepath ../../Asst3 ../../Asst3/*.java
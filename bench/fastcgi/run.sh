@@ -0,0 +1,28 @@
+#!/bin/sh
+# Times 200 sequential requests for cgi-bin/test.cgi, first forking the
+# script for every request, then through the stand-in FastCGI responder.
+sh build.sh || exit 1
+time_requests() {
+	start=$(date +%s%N)
+	i=0
+	while [ $i -lt 200 ]; do
+		curl -s -f -o /dev/null http://localhost:3457/cgi-bin/test.cgi || { echo "$1: request failed"; return; }
+		i=$((i + 1))
+	done
+	echo "$1: $(( ($(date +%s%N) - start) / 200000 ))us per request"
+}
+java -cp build FastCgiResponder unix:/tmp/test.sock &
+RESPONDER=$!
+cd ../../Asst3
+java -cp ../bench/fastcgi/build/server HTTP1ServerASP 3457 2>/dev/null &
+SERVER=$!
+sleep 1
+time_requests fork
+kill $SERVER
+wait $SERVER
+java -Dserver.fastcgi=/cgi-bin/test.cgi=unix:/tmp/test.sock -cp ../bench/fastcgi/build/server HTTP1ServerASP 3457 2>/dev/null &
+SERVER=$!
+sleep 1
+time_requests fastcgi
+kill $SERVER $RESPONDER
+wait
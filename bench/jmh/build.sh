@@ -0,0 +1,4 @@
+#!/bin/sh
+# Builds target/benchmarks.jar, compiling the server sources from ../../Asst3
+# in with the benchmarks. Needs Maven and network access for JMH the first time.
+mvn -B -q package
@@ -0,0 +1,9 @@
+#!/bin/sh
+# Runs the JMH benchmarks for the request path with the gc profiler, so each
+# result comes with its allocation rate (gc.alloc.rate.norm is bytes per
+# operation). Runs from Asst3 so the corpus requests find index.html and
+# resources/. Extra arguments go to JMH, e.g. "sh run.sh RequestParserBench"
+# or "sh run.sh -wi 1 -i 1" for a quick look.
+sh build.sh || exit 1
+JAR=$(pwd)/target/benchmarks.jar
+cd ../../Asst3 && java -jar "$JAR" -prof gc "$@"
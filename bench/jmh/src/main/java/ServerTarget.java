@@ -0,0 +1,142 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import bench.Target;
+
+/**
+ * The benchmarks' way into HTTP1ServerASP, which, being in the default
+ * package, only code in the default package can reach. Connections are
+ * served over MemorySocket, so what is measured is the server's own work
+ * and not the loopback interface's.
+ */
+public class ServerTarget implements Target {
+
+	private final File dir = new File(System.getProperty("user.dir"));
+
+	@Override
+	public int parse(byte[] connection) throws IOException {
+		HTTP1ServerASP.RequestParser parser = new HTTP1ServerASP.RequestParser(
+				new ByteArrayInputStream(connection), null, 0);
+		int parsed = 0;
+		HTTP1ServerASP.ReqObj request;
+		while ((request = parser.next(dir)) != null) {
+			long length = request.contentLength();
+			if (length > 0) {
+				parser.skip(length);
+			}
+			parsed++;
+		}
+		return parsed;
+	}
+
+	@Override
+	public long serve(byte[] connection) {
+		MemorySocket socket = new MemorySocket(connection);
+		new HTTP1ServerASP.HTTPThread(socket, 3456).run();
+		return socket.sink.count;
+	}
+
+	@Override
+	public long shed() {
+		MemorySocket socket = new MemorySocket(new byte[0]);
+		new HTTP1ServerASP.HTTPThread(socket, 3456).shed(1);
+		return socket.sink.count;
+	}
+
+	@Override
+	public long parseDate(byte[] value) {
+		return HttpDates.parse(value, 0, value.length);
+	}
+
+	@Override
+	public byte[] formatDate(long millis) {
+		return HttpDates.format(millis);
+	}
+
+	@Override
+	public byte[] now() {
+		return HttpDates.now();
+	}
+
+	@Override
+	public String codeString(int status) {
+		return HTTP1ServerASP.HTTPThread.codeString(status);
+	}
+
+	@Override
+	public String mime(String ext) {
+		return HTTP1ServerASP.HTTPThread.getMIME(ext);
+	}
+
+	/**
+	 * A connected client as far as HTTPThread can tell: reads come from a
+	 * byte array and writes are counted and dropped. It has no channel, so
+	 * responses go through ResponseWriter's stream path.
+	 */
+	static class MemorySocket extends Socket {
+		private final InputStream source;
+		private final Sink sink = new Sink();
+		private boolean closed = false;
+
+		MemorySocket(byte[] received) {
+			this.source = new ByteArrayInputStream(received);
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return source;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return sink;
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public int getPort() {
+			return 50000;
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) {
+			// nothing to wait for, reads never block
+		}
+
+		@Override
+		public boolean isClosed() {
+			return closed;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Counts what a response would have put on the wire
+	 */
+	static class Sink extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
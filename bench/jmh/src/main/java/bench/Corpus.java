@@ -0,0 +1,102 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request traffic the benchmarks replay, one connection's worth at a time:
+ * what browsers, curl and the course testers actually send.
+ */
+final class Corpus {
+
+	private Corpus() {
+	}
+
+	/**
+	 * A browser loading the page and its image on one HTTP/1.1 connection,
+	 * revalidating the page it already has
+	 */
+	static final String[] BROWSER = {
+			"GET /index.html HTTP/1.1\n"
+					+ "Host: localhost:3456\n"
+					+ "Connection: keep-alive\n"
+					+ "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\n"
+					+ "sec-ch-ua-mobile: ?0\n"
+					+ "sec-ch-ua-platform: \"macOS\"\n"
+					+ "Upgrade-Insecure-Requests: 1\n"
+					+ "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 "
+					+ "(KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\n"
+					+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,"
+					+ "image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7\n"
+					+ "Sec-Fetch-Site: none\n"
+					+ "Sec-Fetch-Mode: navigate\n"
+					+ "Sec-Fetch-User: ?1\n"
+					+ "Sec-Fetch-Dest: document\n"
+					+ "Accept-Encoding: gzip, deflate, br, zstd\n"
+					+ "Accept-Language: en-US,en;q=0.9\n"
+					+ "Cookie: name=bob; cart=Ford,Tesla\n"
+					+ "If-Modified-Since: Thu, 17 Aug 2017 03:21:09 GMT\n\n",
+			"GET /resources/google.png HTTP/1.1\n"
+					+ "Host: localhost:3456\n"
+					+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:125.0) Gecko/20100101 Firefox/125.0\n"
+					+ "Accept: image/avif,image/webp,*/*\n"
+					+ "Accept-Language: en-US,en;q=0.5\n"
+					+ "Accept-Encoding: gzip, deflate, br\n"
+					+ "Connection: keep-alive\n"
+					+ "Referer: http://localhost:3456/index.html\n"
+					+ "Cookie: name=bob; cart=Ford,Tesla\n"
+					+ "Sec-Fetch-Dest: image\n"
+					+ "Sec-Fetch-Mode: no-cors\n"
+					+ "Sec-Fetch-Site: same-origin\n\n",
+			"GET /index.html HTTP/1.1\n"
+					+ "Host: localhost:3456\n"
+					+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\n"
+					+ "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 "
+					+ "(KHTML, like Gecko) Version/17.4 Safari/605.1.15\n"
+					+ "Accept-Language: en-US,en;q=0.9\n"
+					+ "Accept-Encoding: gzip, deflate\n"
+					+ "Connection: keep-alive\n\n" };
+
+	/**
+	 * curl fetching a page, its headers, and one that is not there
+	 */
+	static final String[] CURL = {
+			"GET /index.html HTTP/1.1\nHost: localhost:3456\nUser-Agent: curl/8.5.0\nAccept: */*\n\n",
+			"HEAD /index.html HTTP/1.1\nHost: localhost:3456\nUser-Agent: curl/8.5.0\nAccept: */*\n\n",
+			"GET /missing.html HTTP/1.1\nHost: localhost:3456\nUser-Agent: curl/8.5.0\nAccept: */*\n\n" };
+
+	/**
+	 * HTTP/1.0 requests in the shape of CGITester.jar's test cases: bare
+	 * GETs, conditional GETs, and form POSTs with From and User-Agent. Each
+	 * closes its connection, so these are parsed but not served.
+	 */
+	static final String[] TESTER = {
+			"GET /index.html HTTP/1.0\n\n",
+			"GET /index.html HTTP/1.0\nIf-Modified-Since: Tue, 14 Jul 2015 18:00:00 GMT\n\n",
+			"HEAD /resources/bitcoin.pdf HTTP/1.0\n\n",
+			"POST /cgi-bin/test.cgi HTTP/1.0\n"
+					+ "Content-Length: 65\n"
+					+ "Content-Type: application/x-www-form-urlencoded\n"
+					+ "From: chen.cong@cs.rutgers.edu\n"
+					+ "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_4) AppleWebKit/537.36 "
+					+ "(KHTML, like Gecko) Chrome/41.0.2227.1 Safari/537.36\n\n"
+					+ "name=GOOG&price=%24632.74&CEO=Larry+Page&email=larry%40google.com" };
+
+	/**
+	 * @param requests-
+	 *            requests with bare newlines
+	 * @param times-
+	 *            how often to send the whole set
+	 * @return the bytes a client sends for them on one connection
+	 */
+	static byte[] connection(String[] requests, int times) {
+		StringBuilder wire = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			for (String request : requests) {
+				int body = request.indexOf("\n\n") + 2;
+				// header lines end in CRLF; a POST body goes as it is
+				wire.append(request.substring(0, body).replace("\n", "\r\n")).append(request.substring(body));
+			}
+		}
+		return wire.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,61 @@
+package bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HttpDates, which took over from parseDate() and getServerTime(): parsing
+ * If-Modified-Since in the usual IMF-fixdate form and in the RFC 850 form
+ * that takes the slow path, formatting a Last-Modified, and the per-second
+ * Date header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpDatesBench {
+
+	private Target target;
+	private final byte[] fixdate = "Thu, 17 Aug 2017 03:21:09 GMT".getBytes(StandardCharsets.US_ASCII);
+	private final byte[] rfc850 = "Thursday, 17-Aug-17 03:21:09 GMT".getBytes(StandardCharsets.US_ASCII);
+	private long millis = 1502940069000L;
+
+	@Setup
+	public void setup() {
+		target = Target.load();
+	}
+
+	@Benchmark
+	public long parseFixdate() {
+		return target.parseDate(fixdate);
+	}
+
+	@Benchmark
+	public long parseRfc850() {
+		return target.parseDate(rfc850);
+	}
+
+	@Benchmark
+	public byte[] format() {
+		millis += 1000; // a different second every time, so no memo helps
+		return target.formatDate(millis);
+	}
+
+	@Benchmark
+	public byte[] now() {
+		return target.now();
+	}
+}
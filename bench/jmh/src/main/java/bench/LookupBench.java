@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The string switches on the response path: codeString() for the status
+ * line and getMIME() for Content-Type, cycling through the values real
+ * traffic produces so branch prediction cannot settle on one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBench {
+
+	private static final int[] STATUSES = { 200, 304, 200, 404, 200, 204, 400, 200, 500, 503, 200, 411 };
+	private static final String[] EXTENSIONS = { "html", "png", "css", "js", "html", "jpg", "pdf", "gif", "txt",
+			"cgi", "zip", "unknown" };
+
+	private Target target;
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		target = Target.load();
+	}
+
+	@Benchmark
+	public String codeString() {
+		next = (next + 1) % STATUSES.length;
+		return target.codeString(STATUSES[next]);
+	}
+
+	@Benchmark
+	public String mime() {
+		next = (next + 1) % EXTENSIONS.length;
+		return target.mime(EXTENSIONS[next]);
+	}
+}
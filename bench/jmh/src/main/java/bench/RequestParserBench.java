@@ -0,0 +1,68 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RequestParser.next(): request line, headers and the header values the
+ * server keeps, for each corpus. Every invocation parses one connection
+ * carrying twelve requests, so scores are per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dserver.accessLog=/dev/null" })
+public class RequestParserBench {
+
+	static final int REQUESTS = 12;
+
+	@Param({ "browser", "curl", "tester" })
+	public String corpus;
+
+	private Target target;
+	private byte[] connection;
+
+	@Setup
+	public void setup() throws IOException {
+		target = Target.load();
+		String[] requests = corpus(corpus);
+		connection = Corpus.connection(requests, REQUESTS / requests.length);
+		if (target.parse(connection) != REQUESTS) {
+			throw new IllegalStateException(corpus + " did not parse as " + REQUESTS + " requests");
+		}
+	}
+
+	static String[] corpus(String name) {
+		switch (name) {
+		case "browser":
+			return Corpus.BROWSER;
+		case "curl":
+			return Corpus.CURL;
+		case "tester":
+			return Corpus.TESTER;
+		default:
+			throw new IllegalArgumentException(name);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(REQUESTS)
+	public int parse() throws IOException {
+		return target.parse(connection);
+	}
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTTPThread answering whole connections over an in-memory socket: parsing,
+ * file lookup, doHeader() and the returnResponse()/returnFile()
+ * serialization through ResponseWriter, plus the access log and metrics
+ * bookkeeping, but no network. serve() answers one keep-alive connection
+ * of twelve requests; shed() is the 503 an idle MultiThreadTest.jar
+ * connection gets. Run from Asst3 so the corpus finds its files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Dserver.accessLog=/dev/null", "-Dserver.maxKeepAliveRequests=1000000" })
+public class ResponseBench {
+
+	/**
+	 * One connection's worth of requests from a corpus
+	 */
+	@State(Scope.Thread)
+	public static class Connection {
+		@Param({ "browser", "curl" })
+		public String corpus;
+
+		private byte[] bytes;
+
+		@Setup
+		public void setup() {
+			String[] requests = RequestParserBench.corpus(corpus);
+			bytes = Corpus.connection(requests, RequestParserBench.REQUESTS / requests.length);
+		}
+	}
+
+	private Target target;
+
+	@Setup
+	public void setup() {
+		target = Target.load();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RequestParserBench.REQUESTS)
+	public long serve(Connection connection) {
+		return target.serve(connection.bytes);
+	}
+
+	@Benchmark
+	public long shed() {
+		return target.shed();
+	}
+}
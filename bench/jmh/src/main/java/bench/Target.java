@@ -0,0 +1,63 @@
+package bench;
+
+import java.io.IOException;
+
+/**
+ * What the benchmarks call in HTTP1ServerASP. The server lives in the
+ * default package, which JMH will not generate code for and which code in
+ * a package cannot name, so the calls go through this interface to
+ * ServerTarget, loaded by name. The call site only ever sees one
+ * implementation, so the JIT inlines straight through it.
+ */
+public interface Target {
+
+	/**
+	 * @return the adapter onto the server classes
+	 */
+	static Target load() {
+		try {
+			return (Target) Class.forName("ServerTarget").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ServerTarget is missing from the benchmark jar", e);
+		}
+	}
+
+	/**
+	 * @param connection-
+	 *            the bytes a client sent on one connection
+	 * @return how many requests were parsed from them
+	 */
+	int parse(byte[] connection) throws IOException;
+
+	/**
+	 * Answer every request on one keep-alive connection, as a worker thread
+	 * would, writing the responses to a sink
+	 *
+	 * @return bytes written
+	 */
+	long serve(byte[] connection);
+
+	/**
+	 * Turn away a client that has sent nothing with a 503, as happens to
+	 * MultiThreadTest.jar's idle connections under load
+	 *
+	 * @return bytes written
+	 */
+	long shed();
+
+	/**
+	 * @return the If-Modified-Since value in milliseconds, -1 if unparsable
+	 */
+	long parseDate(byte[] value);
+
+	byte[] formatDate(long millis);
+
+	/**
+	 * @return the Date header value for this second
+	 */
+	byte[] now();
+
+	String codeString(int status);
+
+	String mime(String ext);
+}
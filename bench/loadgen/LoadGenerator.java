@@ -0,0 +1,685 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for HTTP1ServerASP. Requests are sent at a fixed
+ * arrival rate whatever the server is doing: a scheduler decides when each
+ * request should start and hands it to the next free connection, and the
+ * latency recorded runs from that intended start, not from when a
+ * connection got round to sending it. A server that stalls is therefore
+ * charged for every request that queued behind the stall (the coordinated
+ * omission correction), and the uncorrected service time is reported next
+ * to it. Everything runs against a server on this machine; nothing else is
+ * contacted.
+ *
+ * Usage: java -cp . LoadGenerator [--target localhost:3456] [--rate 200]
+ * [--duration 30] [--warmup 5] [--connections 16]
+ * [--profile keepalive|close|slow|simple]
+ * [--mix static=50,conditional=15,head=10,cgi=15,post=10]
+ * [--docroot ../../Asst3] [--seed 1] [--max-p99 ms]
+ *
+ * keepalive reuses HTTP/1.1 connections, close sends each request as
+ * HTTP/1.0 on a new connection, and slow is keepalive with clients that
+ * trickle their requests out a few bytes at a time and read responses in
+ * small pieces. simple is close without a version or headers on the
+ * request line, the only form Asst0's SimpleHTTPServer understands; its
+ * answers are a bare status line and a body that runs to the end of the
+ * connection. With --max-p99 the exit status is 1 when the corrected p99
+ * is above the limit, so a run can gate a change. Besides the kinds in the
+ * default mix, form is a urlencoded POST to test.cgi, the one CGI request
+ * Asst2 also answers.
+ */
+public class LoadGenerator {
+
+	enum Kind {
+		STATIC, CONDITIONAL, HEAD, CGI, FORM, POST
+	}
+
+	private static final int VARIANTS = 64; // prebuilt requests of each kind
+	private static final int SLOW_PIECE = 16; // bytes a slow client writes at a time
+	private static final long SLOW_PAUSE = TimeUnit.MILLISECONDS.toNanos(5);
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+	private final String host;
+	private final int port;
+	private final double rate;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final int connections;
+	private final String profile;
+	private final Map<Kind, Integer> mix;
+	private final File docroot;
+	private final Random random;
+	private final Map<Kind, byte[][]> requests = new LinkedHashMap<>();
+	private final LinkedBlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+	private final List<Worker> workers = new ArrayList<>();
+
+	/**
+	 * A request due at a given time
+	 */
+	private static class Job {
+		private final long intended; // when it should have been sent
+		private final Kind kind;
+		private final byte[] request;
+		private final boolean measured; // false during warmup
+
+		Job(long intended, Kind kind, byte[] request, boolean measured) {
+			this.intended = intended;
+			this.kind = kind;
+			this.request = request;
+			this.measured = measured;
+		}
+	}
+
+	private static final Job STOP = new Job(0, null, null, false);
+
+	LoadGenerator(Map<String, String> options) {
+		String target = options.getOrDefault("target", "localhost:3456");
+		int colon = target.lastIndexOf(':');
+		host = target.substring(0, colon);
+		port = Integer.parseInt(target.substring(colon + 1));
+		rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+		warmupNanos = seconds(options.getOrDefault("warmup", "5"));
+		durationNanos = seconds(options.getOrDefault("duration", "30"));
+		connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+		profile = options.getOrDefault("profile", "keepalive");
+		if (!Arrays.asList("keepalive", "close", "slow", "simple").contains(profile)) {
+			throw new IllegalArgumentException("profile must be keepalive, close, slow or simple");
+		}
+		mix = parseMix(options.getOrDefault("mix", "static=50,conditional=15,head=10,cgi=15,post=10"));
+		docroot = new File(options.getOrDefault("docroot", "../../Asst3"));
+		random = new Random(Long.parseLong(options.getOrDefault("seed", "1")));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				usage();
+				return;
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		if (args.length % 2 != 0) {
+			usage();
+			return;
+		}
+		LoadGenerator generator = new LoadGenerator(options);
+		Report report = generator.run();
+		report.print(System.out);
+		String limit = options.get("max-p99");
+		if (limit != null && report.correctedMillis(0.99) > Double.parseDouble(limit)) {
+			System.out.println("FAIL: corrected p99 above " + limit + "ms");
+			System.exit(1);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java -cp . LoadGenerator [--target localhost:3456] [--rate 200] [--duration 30]"
+				+ " [--warmup 5] [--connections 16] [--profile keepalive|close|slow|simple]"
+				+ " [--mix static=50,conditional=15,head=10,cgi=15,post=10] [--docroot ../../Asst3]"
+				+ " [--seed 1] [--max-p99 ms]");
+	}
+
+	private static long seconds(String value) {
+		return (long) (Double.parseDouble(value) * 1e9);
+	}
+
+	private static Map<Kind, Integer> parseMix(String spec) {
+		Map<Kind, Integer> mix = new LinkedHashMap<>();
+		for (String part : spec.split(",")) {
+			String[] weight = part.split("=");
+			int value = Integer.parseInt(weight[1].trim());
+			if (value > 0) {
+				mix.put(Kind.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)), value);
+			}
+		}
+		if (mix.isEmpty()) {
+			throw new IllegalArgumentException("the mix has no requests in it");
+		}
+		return mix;
+	}
+
+	/**
+	 * Send requests at the configured rate for the warmup and the measured
+	 * duration, then wait for the last answers
+	 */
+	Report run() throws InterruptedException {
+		buildRequests();
+		Report report = new Report(this);
+		for (int i = 0; i < connections; i++) {
+			Worker worker = new Worker(report);
+			workers.add(worker);
+			worker.start();
+		}
+		int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+		long interval = (long) (1e9 / rate);
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		long measureFrom = start + warmupNanos;
+		long end = measureFrom + durationNanos;
+		for (long i = 0;; i++) {
+			long intended = start + i * interval;
+			if (intended - end >= 0) {
+				break;
+			}
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			Kind kind = pick(totalWeight);
+			byte[][] variants = requests.get(kind);
+			boolean measured = intended - measureFrom >= 0;
+			queue.add(new Job(intended, kind, variants[random.nextInt(variants.length)], measured));
+			if (measured) {
+				report.scheduled++;
+			}
+		}
+		for (int i = 0; i < connections; i++) {
+			queue.add(STOP);
+		}
+		for (Worker worker : workers) {
+			worker.join(TimeUnit.SECONDS.toMillis(60));
+			worker.interrupt();
+		}
+		report.elapsedNanos = durationNanos;
+		return report;
+	}
+
+	private Kind pick(int totalWeight) {
+		int n = random.nextInt(totalWeight);
+		for (Map.Entry<Kind, Integer> weight : mix.entrySet()) {
+			n -= weight.getValue();
+			if (n < 0) {
+				return weight.getKey();
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Build a set of requests of each kind up front so making them costs
+	 * nothing while the clock is running
+	 */
+	private void buildRequests() {
+		List<String> files = new ArrayList<>();
+		files.add("/index.html");
+		File[] resources = new File(docroot, "resources").listFiles();
+		if (resources != null) {
+			for (File file : resources) {
+				if (file.isFile()) {
+					files.add("/resources/" + file.getName());
+				}
+			}
+		}
+		String now = HTTP_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+		for (Kind kind : mix.keySet()) {
+			byte[][] variants = new byte[VARIANTS][];
+			for (int v = 0; v < VARIANTS; v++) {
+				String file = files.get(v % files.size());
+				switch (kind) {
+				case STATIC:
+					variants[v] = request("GET", file, "", null);
+					break;
+				case CONDITIONAL:
+					variants[v] = request("GET", file, "If-Modified-Since: " + now + "\r\n", null);
+					break;
+				case HEAD:
+					variants[v] = request("HEAD", file, "", null);
+					break;
+				case CGI:
+					variants[v] = request("GET", "/cgi-bin/test.cgi?name=user" + v + "&item=Ford&qty=" + (v % 5 + 1),
+							"User-Agent: LoadGenerator\r\nFrom: load@localhost\r\n", null);
+					break;
+				case FORM:
+					variants[v] = request("POST", "/cgi-bin/test.cgi",
+							"Content-Type: application/x-www-form-urlencoded\r\n",
+							("name=user+" + v + "&item=Ford%20Pinto&qty=" + (v % 5 + 1)).getBytes(StandardCharsets.ISO_8859_1));
+					break;
+				case POST:
+					variants[v] = multipart(v);
+					break;
+				default:
+					throw new IllegalStateException();
+				}
+			}
+			requests.put(kind, variants);
+		}
+	}
+
+	/**
+	 * A form upload to service.cgi: the MD5 to check and a file of 1 to 16K
+	 */
+	private byte[] multipart(int variant) {
+		String boundary = "----LoadGeneratorBoundary" + variant;
+		byte[] data = new byte[1024 * (1 + variant % 16)];
+		random.nextBytes(data);
+		String md5;
+		try {
+			byte[] digest = java.security.MessageDigest.getInstance("MD5").digest(data);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			md5 = hex.toString();
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.writeBytes(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"md5input\"\r\n\r\n" + md5
+				+ "\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"datafile\"; filename=\"upload"
+				+ variant + ".bin\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+		body.writeBytes(data);
+		body.writeBytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		return request("POST", "/cgi-bin/service.cgi",
+				"Content-Type: multipart/form-data; boundary=" + boundary + "\r\n", body.toByteArray());
+	}
+
+	private byte[] request(String method, String path, String headers, byte[] body) {
+		if (profile.equals("simple")) {
+			return (method + ' ' + path + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+		}
+		boolean keepAlive = profile.equals("keepalive") || profile.equals("slow");
+		StringBuilder head = new StringBuilder();
+		head.append(method).append(' ').append(path).append(keepAlive ? " HTTP/1.1\r\n" : " HTTP/1.0\r\n");
+		head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+		head.append(headers);
+		if (body != null) {
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		head.append("\r\n");
+		ByteArrayOutputStream request = new ByteArrayOutputStream();
+		request.writeBytes(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+		if (body != null) {
+			request.writeBytes(body);
+		}
+		return request.toByteArray();
+	}
+
+	/**
+	 * One client connection taking jobs off the shared queue
+	 */
+	private class Worker extends Thread {
+		private final Report report;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+
+		Worker(Report report) {
+			super("loadgen");
+			setDaemon(true);
+			this.report = report;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Job job = queue.take();
+					if (job == STOP) {
+						break;
+					}
+					serve(job);
+				}
+			} catch (InterruptedException e) {
+				// out of time
+			} finally {
+				closeConnection();
+			}
+		}
+
+		private void serve(Job job) {
+			boolean reused = socket != null;
+			try {
+				long sent = System.nanoTime();
+				Response response;
+				try {
+					response = exchange(job);
+				} catch (EOFException e) {
+					if (!reused) {
+						throw e;
+					}
+					// the server closed the idle connection first; that is not its failure
+					closeConnection();
+					sent = System.nanoTime();
+					response = exchange(job);
+				}
+				long done = System.nanoTime();
+				if (job.measured) {
+					report.record(job.kind, response.status, response.bytes, done - job.intended, done - sent);
+				}
+				if (response.close || profile.equals("close") || profile.equals("simple")) {
+					closeConnection();
+				}
+			} catch (IOException e) {
+				if (job.measured) {
+					report.error(job.kind, System.nanoTime() - job.intended, e);
+				}
+				closeConnection();
+			}
+		}
+
+		private Response exchange(Job job) throws IOException {
+			if (socket == null) {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(30000);
+				socket.connect(new InetSocketAddress(host, port), 30000);
+				in = new BufferedInputStream(socket.getInputStream(), profile.equals("slow") ? 256 : 16 * 1024);
+				out = socket.getOutputStream();
+			}
+			if (profile.equals("slow")) {
+				for (int off = 0; off < job.request.length; off += SLOW_PIECE) {
+					out.write(job.request, off, Math.min(SLOW_PIECE, job.request.length - off));
+					out.flush();
+					LockSupport.parkNanos(SLOW_PAUSE);
+				}
+			} else {
+				out.write(job.request);
+				out.flush();
+			}
+			if (profile.equals("simple")) {
+				return Response.readSimple(in);
+			}
+			return Response.read(in, job.kind == Kind.HEAD, profile.equals("slow"));
+		}
+
+		private void closeConnection() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// already gone
+				}
+				socket = null;
+			}
+		}
+	}
+
+	/**
+	 * What came back for one request
+	 */
+	static class Response {
+		int status;
+		long bytes; // body bytes
+		boolean close; // the server will not take another request on this connection
+
+		/**
+		 * Read a status line, headers and a body framed by Content-Length,
+		 * chunked encoding or the end of the connection
+		 */
+		static Response read(InputStream in, boolean head, boolean slow) throws IOException {
+			Response response = new Response();
+			String status = line(in);
+			if (status == null) {
+				throw new EOFException("connection closed before a response");
+			}
+			String[] parts = status.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("bad status line: " + status);
+			}
+			response.status = Integer.parseInt(parts[1]);
+			response.close = parts[0].equals("HTTP/1.0");
+			long length = -1;
+			boolean chunked = false;
+			String header;
+			while ((header = line(in)) != null && !header.isEmpty()) {
+				int colon = header.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				String value = header.substring(colon + 1).trim();
+				if (name.equals("content-length")) {
+					length = Long.parseLong(value);
+				} else if (name.equals("transfer-encoding")) {
+					chunked = value.equalsIgnoreCase("chunked");
+				} else if (name.equals("connection")) {
+					if (value.equalsIgnoreCase("close")) {
+						response.close = true;
+					} else if (value.equalsIgnoreCase("keep-alive")) {
+						response.close = false;
+					}
+				}
+			}
+			if (header == null) {
+				throw new EOFException("connection closed in the headers");
+			}
+			if (head || response.status == 204 || response.status == 304 || response.status < 200) {
+				return response;
+			}
+			if (chunked) {
+				long size;
+				while ((size = Long.parseLong(line(in).split(";")[0].trim(), 16)) > 0) {
+					response.bytes += skip(in, size, slow);
+					line(in);
+				}
+				while ((header = line(in)) != null && !header.isEmpty()) {
+					// trailers
+				}
+			} else if (length >= 0) {
+				response.bytes = skip(in, length, slow);
+			} else {
+				response.bytes = skip(in, Long.MAX_VALUE, slow);
+				response.close = true;
+			}
+			return response;
+		}
+
+		/**
+		 * Read a bare "200 OK" status line and everything after it up to the
+		 * end of the connection
+		 */
+		static Response readSimple(InputStream in) throws IOException {
+			Response response = new Response();
+			String status = line(in);
+			if (status == null) {
+				throw new EOFException("connection closed before a response");
+			}
+			try {
+				response.status = Integer.parseInt(status.split(" ", 2)[0]);
+			} catch (NumberFormatException e) {
+				throw new IOException("bad status line: " + status);
+			}
+			response.bytes = skip(in, Long.MAX_VALUE, false);
+			response.close = true;
+			return response;
+		}
+
+		private static String line(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c == '\n') {
+					int end = line.length();
+					return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+				}
+				line.append((char) c);
+			}
+			return line.length() > 0 ? line.toString() : null;
+		}
+
+		/**
+		 * @return bytes skipped; fewer than asked for only when reading to
+		 *         the end of the connection
+		 */
+		private static long skip(InputStream in, long count, boolean slow) throws IOException {
+			byte[] buf = new byte[slow ? 256 : 16 * 1024];
+			long done = 0;
+			while (done < count) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, count - done));
+				if (n < 0) {
+					if (count == Long.MAX_VALUE) {
+						return done;
+					}
+					throw new EOFException("connection closed in the body");
+				}
+				done += n;
+				if (slow) {
+					LockSupport.parkNanos(SLOW_PAUSE / 5);
+				}
+			}
+			return done;
+		}
+	}
+
+	/**
+	 * Everything recorded during the measured part of the run
+	 */
+	static class Report {
+		private final LoadGenerator generator;
+		private final Map<Kind, Samples> corrected = new LinkedHashMap<>();
+		private final Samples all = new Samples();
+		private final Samples uncorrected = new Samples();
+		private final Map<Integer, Long> statuses = new TreeMap<>();
+		private final Map<String, Long> errors = new TreeMap<>();
+		private long bytes = 0;
+		long scheduled = 0; // written by the scheduling thread only
+		long elapsedNanos;
+
+		Report(LoadGenerator generator) {
+			this.generator = generator;
+			for (Kind kind : Kind.values()) {
+				corrected.put(kind, new Samples());
+			}
+		}
+
+		synchronized void record(Kind kind, int status, long body, long latency, long service) {
+			corrected.get(kind).add(latency);
+			all.add(latency);
+			uncorrected.add(service);
+			statuses.merge(status, 1L, Long::sum);
+			bytes += body;
+		}
+
+		synchronized void error(Kind kind, long latency, IOException e) {
+			corrected.get(kind).add(latency);
+			all.add(latency);
+			errors.merge(e.getClass().getSimpleName() + ": " + e.getMessage(), 1L, Long::sum);
+		}
+
+		synchronized double correctedMillis(double quantile) {
+			return all.quantile(quantile) / 1e6;
+		}
+
+		/**
+		 * @return requests answered, whatever the status
+		 */
+		synchronized long completed() {
+			return uncorrected.size();
+		}
+
+		/**
+		 * @return requests that got no answer because of an I/O error
+		 */
+		synchronized long failed() {
+			return errors.values().stream().mapToLong(Long::longValue).sum();
+		}
+
+		synchronized long count(int status) {
+			return statuses.getOrDefault(status, 0L);
+		}
+
+		/**
+		 * @return answers a second over the measured part of the run
+		 */
+		synchronized double throughput() {
+			return uncorrected.size() / (elapsedNanos / 1e9);
+		}
+
+		synchronized void print(java.io.PrintStream out) {
+			long completed = completed();
+			long failed = failed();
+			double seconds = elapsedNanos / 1e9;
+			out.printf(Locale.ROOT, "%s:%d at %.0f req/s for %.0fs after %.0fs warmup, %d %s connections%n",
+					generator.host, generator.port, generator.rate, seconds, generator.warmupNanos / 1e9,
+					generator.connections, generator.profile);
+			out.printf(Locale.ROOT, "%d scheduled, %d completed, %d errors, %d unanswered; %.1f req/s, %.1f MB/s%n",
+					scheduled, completed, failed, scheduled - completed - failed, completed / seconds,
+					bytes / seconds / 1e6);
+			out.println("Status: " + statuses);
+			for (Map.Entry<String, Long> error : errors.entrySet()) {
+				out.println("Error: " + error.getValue() + " x " + error.getKey());
+			}
+			out.println();
+			out.println("  Latency  corrected(ms)  uncorrected(ms)");
+			double[] quantiles = { 0.5, 0.75, 0.9, 0.99, 0.999, 0.9999, 0.99999, 1.0 };
+			for (double q : quantiles) {
+				out.printf(Locale.ROOT, "%8s%%  %13.3f  %15.3f%n", trim(q * 100), all.quantile(q) / 1e6,
+						uncorrected.quantile(q) / 1e6);
+			}
+			out.println();
+			out.println("  By kind      count   p50(ms)   p99(ms)   max(ms)");
+			for (Map.Entry<Kind, Samples> kind : corrected.entrySet()) {
+				Samples samples = kind.getValue();
+				if (samples.size() > 0) {
+					out.printf(Locale.ROOT, "  %-11s %6d %9.3f %9.3f %9.3f%n", kind.getKey().name().toLowerCase(Locale.ROOT),
+							samples.size(), samples.quantile(0.5) / 1e6, samples.quantile(0.99) / 1e6,
+							samples.quantile(1.0) / 1e6);
+				}
+			}
+		}
+
+		private static String trim(double percent) {
+			String text = String.format(Locale.ROOT, "%.3f", percent);
+			return text.replaceAll("0+$", "").replaceAll("\\.$", "");
+		}
+	}
+
+	/**
+	 * Every latency recorded, kept exactly; a run of a few minutes at a few
+	 * thousand requests a second is a few megabytes
+	 */
+	static class Samples {
+		private long[] values = new long[1024];
+		private int size = 0;
+		private boolean sorted = true;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+			sorted = false;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long quantile(double q) {
+			if (size == 0) {
+				return 0;
+			}
+			if (!sorted) {
+				Arrays.sort(values, 0, size);
+				sorted = true;
+			}
+			int rank = (int) Math.ceil(q * size);
+			return values[Math.max(0, Math.min(size - 1, rank - 1))];
+		}
+	}
+}
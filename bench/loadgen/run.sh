@@ -0,0 +1,20 @@
+#!/bin/sh
+# Starts the server in the given mode (pool by default) and drives it with
+# the keepalive, close and slow profiles in turn at a fixed rate. Extra
+# arguments go to LoadGenerator, e.g. "sh run.sh nio --rate 500 --max-p99 50".
+sh build.sh || exit 1
+MODE=${1:-pool}
+[ $# -gt 0 ] && shift
+cd ../../Asst3
+java -cp ../bench/loadgen/build/server HTTP1ServerASP 3458 "$MODE" 2>/dev/null &
+SERVER=$!
+sleep 1
+cd ../bench/loadgen
+STATUS=0
+for profile in keepalive close slow; do
+	java -cp build LoadGenerator --target localhost:3458 --profile $profile --duration 20 --warmup 5 "$@" || STATUS=1
+	echo
+done
+kill $SERVER
+wait $SERVER
+exit $STATUS
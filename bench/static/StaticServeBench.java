@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Compares the ways HTTP1ServerASP can put a static file on the wire: reading
+ * it into the heap (the old Files.readAllBytes path), writing a cached memory
+ * mapping, FileChannel.transferTo to a SocketChannel (sendfile, nio mode)
+ * and transferTo through a stream channel (the plain Socket fallback). Each
+ * strategy sends files of several sizes over loopback to a thread that just
+ * drains the socket, and reports throughput and heap allocated per send.
+ *
+ * Usage: java -cp build StaticServeBench [seconds per case]
+ */
+public class StaticServeBench {
+
+	private static final int[] SIZES = { 4 * 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+	private static final String[] STRATEGIES = { "heap", "mmap", "transferTo", "transferTo-stream" };
+
+	public static void main(String[] args) throws Exception {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+		ServerSocket sink = new ServerSocket(0);
+		Thread drain = new Thread(() -> drain(sink));
+		drain.setDaemon(true);
+		drain.start();
+
+		System.out.printf("%-18s %10s %10s %12s %14s%n", "strategy", "size", "sends/s", "MB/s", "alloc B/send");
+		for (int size : SIZES) {
+			File file = File.createTempFile("bench", ".bin");
+			file.deleteOnExit();
+			byte[] random = new byte[size];
+			new Random(size).nextBytes(random);
+			Files.write(file.toPath(), random);
+			for (String strategy : STRATEGIES) {
+				try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", sink.getLocalPort()))) {
+					run(strategy, file, channel, seconds / 4); // warm up
+					Result r = run(strategy, file, channel, seconds);
+					System.out.printf("%-18s %10d %10.0f %12.1f %14d%n", strategy, size, r.sends / r.seconds,
+							r.sends * (double) size / r.seconds / (1024 * 1024), r.allocated / Math.max(1, r.sends));
+				}
+			}
+			file.delete();
+		}
+	}
+
+	private static class Result {
+		private long sends;
+		private double seconds;
+		private long allocated;
+	}
+
+	/**
+	 * Send the file repeatedly for the given time using one strategy
+	 */
+	private static Result run(String strategy, File file, SocketChannel channel, double seconds) throws IOException {
+		Socket socket = channel.socket();
+		OutputStream stream = socket.getOutputStream();
+		WritableByteChannel streamChannel = Channels.newChannel(stream);
+		MappedByteBuffer mapping = null;
+		if (strategy.equals("mmap")) { // mapped once and reused, as the server's MappedFiles does
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				mapping = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			}
+		}
+		Result result = new Result();
+		long allocStart = allocatedBytes();
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			switch (strategy) {
+			case "heap":
+				stream.write(Files.readAllBytes(file.toPath()));
+				break;
+			case "mmap":
+				ByteBuffer view = mapping.duplicate();
+				while (view.hasRemaining()) {
+					channel.write(view);
+				}
+				break;
+			case "transferTo":
+				transfer(file, channel);
+				break;
+			default:
+				transfer(file, streamChannel);
+				break;
+			}
+			result.sends++;
+		}
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		result.allocated = allocatedBytes() - allocStart;
+		return result;
+	}
+
+	private static void transfer(File file, WritableByteChannel target) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = in.size();
+			long sent = 0;
+			while (sent < length) {
+				sent += in.transferTo(sent, length - sent, target);
+			}
+		}
+	}
+
+	/**
+	 * @return bytes the current thread has allocated on the heap so far
+	 */
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Accept connections and throw away everything they send
+	 */
+	private static void drain(ServerSocket sink) {
+		byte[] chunk = new byte[256 * 1024];
+		while (true) {
+			try (Socket client = sink.accept(); InputStream in = client.getInputStream()) {
+				while (in.read(chunk) >= 0) {
+					// discard
+				}
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,5 @@
+#!/bin/sh
+# Compiles the benchmark into build, keeping class files out of the source
+# directory.
+mkdir -p build
+javac -d build StaticServeBench.java
@@ -0,0 +1,5 @@
+#!/bin/sh
+# Builds and runs the static-file benchmark. The argument is the number of
+# seconds per case, 2 by default, e.g. "sh run.sh 5".
+sh build.sh || exit 1
+java -cp build StaticServeBench "${1:-2}"